@@ -0,0 +1,114 @@
+package org.fluentd.logger;
+
+import org.fluentd.logger.sender.AsyncSender;
+import org.fluentd.logger.sender.OverflowPolicy;
+import org.fluentd.logger.sender.RawSocketSender;
+import org.fluentd.logger.sender.Sender;
+import org.fluentd.logger.util.MockFluentd;
+import org.msgpack.MessagePack;
+import org.msgpack.unpacker.Unpacker;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Events per second from {@link FluentLogger#log} until a local server has decoded them, with the events
+ * sent directly, through {@link AsyncSender}, and through {@link AsyncSender} in the PackedForward mode.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class EndToEndBenchmark {
+
+    private static final int BATCH_SIZE = 1000;
+
+    private static final long DELIVERY_TIMEOUT_MILLIS = 10 * 1000;
+
+    @Param({"raw", "async", "packed"})
+    public String mode;
+
+    private MockFluentd fluentd;
+
+    private final AtomicLong received = new AtomicLong();
+
+    private long sent;
+
+    private FluentLogger logger;
+
+    private final Map<String, Object> data = new HashMap<String, Object>();
+
+    @Setup
+    public void setUp() throws Exception {
+        int port = MockFluentd.randomPort();
+        fluentd = new MockFluentd(port, new MockFluentd.MockProcess() {
+            public void process(MessagePack msgpack, Socket socket) throws IOException {
+                BufferedInputStream in = new BufferedInputStream(socket.getInputStream());
+                try {
+                    Unpacker unpacker = msgpack.createUnpacker(in);
+                    while (true) {
+                        received.addAndGet(MockFluentd.readEvents(msgpack, unpacker).size());
+                    }
+                } catch (EOFException e) {
+                    // ignore
+                }
+            }
+        });
+        fluentd.start();
+        fluentd.waitUntilReady();
+
+        RawSocketSender raw = new RawSocketSender("localhost", port);
+        Sender sender;
+        if ("raw".equals(mode)) {
+            sender = raw;
+        } else {
+            raw.setPackedForward("packed".equals(mode));
+            sender = new AsyncSender(raw, 3 * 1000, AsyncSender.DEFAULT_QUEUE_SIZE, OverflowPolicy.BLOCK);
+        }
+        logger = new FluentLogger("bench", sender);
+
+        data.put("host", "web01");
+        data.put("status", 200);
+        data.put("latency", 12.5);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        logger.close();
+        fluentd.closeClientSockets();
+        fluentd.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public void logAndDeliver() throws InterruptedException {
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            logger.log("e2e", data);
+        }
+        logger.flush();
+        sent += BATCH_SIZE;
+
+        long deadline = System.currentTimeMillis() + DELIVERY_TIMEOUT_MILLIS;
+        while (received.get() < sent) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new IllegalStateException(String.format("Only %d of %d events arrived", received.get(), sent));
+            }
+            Thread.sleep(0, 100 * 1000);
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package org.fluentd.logger;
+
+import org.fluentd.logger.sender.NullSender;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Looking up an existing logger in {@link FluentLoggerFactory}, with several loggers registered.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class FluentLoggerFactoryBenchmark {
+
+    @Param({"1", "100"})
+    public int loggers;
+
+    private FluentLoggerFactory factory;
+
+    private String lastTag;
+
+    // the factory only keeps weak references
+    private final List<FluentLogger> registered = new ArrayList<FluentLogger>();
+
+    @Setup
+    public void setUp() {
+        // the loggers never connect
+        System.setProperty(Config.FLUENT_SENDER_CLASS, NullSender.class.getName());
+        factory = new FluentLoggerFactory();
+        for (int i = 0; i < loggers; i++) {
+            registered.add(factory.getLogger("tag" + i, "localhost", 24224, 3000, 1024));
+        }
+        lastTag = "tag" + (loggers - 1);
+    }
+
+    @TearDown
+    public void tearDown() {
+        factory.closeAll();
+        registered.clear();
+        System.clearProperty(Config.FLUENT_SENDER_CLASS);
+    }
+
+    @Benchmark
+    public FluentLogger getLogger() {
+        return factory.getLogger(lastTag, "localhost", 24224, 3000, 1024);
+    }
+}
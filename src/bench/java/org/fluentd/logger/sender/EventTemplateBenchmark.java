@@ -0,0 +1,108 @@
+package org.fluentd.logger.sender;
+
+import org.msgpack.MessagePack;
+import org.msgpack.packer.BufferPacker;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serialization of a single event with {@link Event.EventTemplate}, for records of several shapes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class EventTemplateBenchmark {
+
+    @Param({"small", "mixed", "wide", "nested"})
+    public String shape;
+
+    private Event event;
+
+    private BufferPacker bufferPacker;
+
+    private ByteBuffer buffer;
+
+    private ByteBufferPacker packer;
+
+    @Setup
+    public void setUp() {
+        event = new Event("bench.tag", 1400000000L, record(shape));
+        MessagePack msgpack = new MessagePack();
+        msgpack.register(Event.class, Event.EventTemplate.INSTANCE);
+        bufferPacker = msgpack.createBufferPacker();
+        buffer = ByteBuffer.allocate(64 * 1024);
+        packer = new ByteBufferPacker(msgpack, buffer);
+    }
+
+    static Map<String, Object> record(String shape) {
+        Map<String, Object> record = new HashMap<String, Object>();
+        if ("small".equals(shape)) {
+            record.put("host", "web01");
+            record.put("path", "/index.html");
+            record.put("method", "GET");
+        } else if ("mixed".equals(shape)) {
+            record.put("host", "web01");
+            record.put("status", 200);
+            record.put("latency", 12.5);
+            record.put("size", 4096L);
+            record.put("cached", true);
+        } else if ("wide".equals(shape)) {
+            for (int i = 0; i < 50; i++) {
+                record.put("field" + i, i % 2 == 0 ? (Object) ("value" + i) : (Object) i);
+            }
+        } else if ("nested".equals(shape)) {
+            Map<String, Object> user = new HashMap<String, Object>();
+            user.put("id", 42);
+            user.put("name", "alice");
+            record.put("user", user);
+            record.put("tags", Arrays.asList("a", "b", "c"));
+            record.put("scores", Arrays.asList(1, 2, 3, 4, 5));
+        } else {
+            throw new IllegalArgumentException("Unknown shape: " + shape);
+        }
+        return record;
+    }
+
+    /**
+     * Serializes into msgpack's growable buffer, as <code>MessagePack.write</code> does.
+     */
+    @Benchmark
+    public int writeBufferPacker() throws IOException {
+        bufferPacker.clear();
+        Event.EventTemplate.INSTANCE.write(bufferPacker, event, true);
+        return bufferPacker.getBufferSize();
+    }
+
+    /**
+     * Serializes straight into a pending buffer, as {@link RawSocketSender} does.
+     */
+    @Benchmark
+    public int packIntoPendingBuffer() throws IOException {
+        buffer.clear();
+        packer.pack(event, false);
+        return buffer.position();
+    }
+
+    /**
+     * Serializes a <code>[time, record]</code> entry of the PackedForward mode.
+     */
+    @Benchmark
+    public int packEntryIntoPendingBuffer() throws IOException {
+        buffer.clear();
+        packer.pack(event, true);
+        return buffer.position();
+    }
+}
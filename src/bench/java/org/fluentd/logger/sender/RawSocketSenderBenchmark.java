@@ -0,0 +1,96 @@
+package org.fluentd.logger.sender;
+
+import org.fluentd.logger.util.MockFluentd;
+import org.msgpack.MessagePack;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Emitting through {@link RawSocketSender} to a local server which discards what it reads, from one
+ * thread and from several threads contending for the sender, next to a {@link PooledSender}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class RawSocketSenderBenchmark {
+
+    private static final int CONNECTIONS = 4;
+
+    @Param({"false", "true"})
+    public boolean packedForward;
+
+    private MockFluentd fluentd;
+
+    private RawSocketSender sender;
+
+    private PooledSender pooledSender;
+
+    @State(Scope.Thread)
+    public static class Record {
+        Map<String, Object> data = EventTemplateBenchmark.record("mixed");
+    }
+
+    @Setup
+    public void setUp() throws Exception {
+        int port = MockFluentd.randomPort();
+        fluentd = new MockFluentd(port, new MockFluentd.MockProcess() {
+            public void process(MessagePack msgpack, Socket socket) throws IOException {
+                InputStream in = socket.getInputStream();
+                byte[] buf = new byte[64 * 1024];
+                while (in.read(buf) >= 0) {
+                }
+            }
+        });
+        fluentd.start();
+        fluentd.waitUntilReady();
+
+        sender = new RawSocketSender("localhost", port);
+        sender.setPackedForward(packedForward);
+        RawSocketSender[] stripes = new RawSocketSender[CONNECTIONS];
+        for (int i = 0; i < CONNECTIONS; i++) {
+            stripes[i] = new RawSocketSender("localhost", port);
+            stripes[i].setPackedForward(packedForward);
+        }
+        pooledSender = new PooledSender(stripes);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        sender.close();
+        pooledSender.close();
+        fluentd.closeClientSockets();
+        fluentd.close();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public boolean emit(Record record) {
+        return sender.emit("bench.tag", record.data);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean emitMultiThreaded(Record record) {
+        return sender.emit("bench.tag", record.data);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean emitPooled(Record record) {
+        return pooledSender.emit("bench.tag", record.data);
+    }
+}
@@ -0,0 +1,212 @@
+//
+// A Structured Logger for Fluent
+//
+// Copyright (C) 2011 - 2013 Muga Nishizawa
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//
+package org.fluentd.logger;
+
+import org.fluentd.logger.sender.EncodedRecord;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Writes the properties of a {@link LogRecord} class into an {@link EncodedRecord}. The writer of a class
+ * is a single method handle, composed once from its getters and the typed <code>put</code> methods of
+ * {@link EncodedRecord}, so writing an object neither goes through reflection nor builds a map, and
+ * primitive properties aren't boxed. Method handles need Java 7; this class is only loaded once an object
+ * is logged. It's also compiled for Java 7, as the handle is called with <code>invokeExact</code>, which
+ * javac only treats as a call of the handle's own type from source level 7 on.
+ */
+final class BeanWriter {
+
+    private static final ClassValue<BeanWriter> WRITERS = new ClassValue<BeanWriter>() {
+        @Override
+        protected BeanWriter computeValue(Class<?> type) {
+            return new BeanWriter(type);
+        }
+    };
+
+    private static final MethodType WRITER_TYPE = MethodType.methodType(void.class, EncodedRecord.class,
+            Object.class);
+
+    /** Writes all the properties; null for a class without any. */
+    private final MethodHandle writer;
+
+    private BeanWriter(Class<?> type) {
+        if (!type.isAnnotationPresent(LogRecord.class)) {
+            throw new IllegalArgumentException(type.getName() + " is not annotated with @LogRecord");
+        }
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        MethodHandle writer = null;
+        try {
+            for (Map.Entry<String, Method> property : properties(type).entrySet()) {
+                MethodHandle put = writeProperty(lookup, property.getKey(), property.getValue());
+                // run the writers of the earlier properties first
+                writer = writer == null ? put : MethodHandles.foldArguments(put, writer);
+            }
+        } catch (IllegalAccessException e) {
+            throw new IllegalArgumentException("Cannot access the properties of " + type.getName(), e);
+        } catch (NoSuchMethodException e) {
+            throw new IllegalStateException(e);
+        }
+        this.writer = writer;
+    }
+
+    static BeanWriter of(Class<?> type) {
+        return WRITERS.get(type);
+    }
+
+    void write(EncodedRecord record, Object bean) {
+        if (writer == null) {
+            return;
+        }
+        try {
+            writer.invokeExact(record, bean);
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IllegalStateException("Cannot write " + bean.getClass().getName(), e);
+        }
+    }
+
+    /**
+     * Returns a handle of <code>(EncodedRecord, Object)void</code> which puts the value of the getter
+     * with the <code>put</code> method for its type.
+     */
+    private static MethodHandle writeProperty(MethodHandles.Lookup lookup, String key, Method getter)
+            throws IllegalAccessException, NoSuchMethodException {
+        Class<?> valueType = putType(getter.getReturnType());
+        MethodHandle put = lookup.findVirtual(EncodedRecord.class, "put",
+                MethodType.methodType(EncodedRecord.class, String.class, valueType));
+        put = MethodHandles.insertArguments(put, 1, key);
+
+        if (!Modifier.isPublic(getter.getDeclaringClass().getModifiers())) {
+            getter.setAccessible(true);
+        }
+        MethodHandle get = lookup.unreflect(getter).asType(MethodType.methodType(valueType, Object.class));
+        return MethodHandles.filterArguments(put, 1, get).asType(WRITER_TYPE);
+    }
+
+    private static Class<?> putType(Class<?> type) {
+        if (type == long.class || type == int.class || type == short.class || type == byte.class) {
+            return long.class;
+        } else if (type == double.class || type == float.class) {
+            return double.class;
+        } else if (type == boolean.class || type == String.class) {
+            return type;
+        } else {
+            return Object.class;
+        }
+    }
+
+    /**
+     * Returns the getters by key, in the order of the components of a Java record and sorted by key for
+     * other classes.
+     */
+    private static Map<String, Method> properties(Class<?> type) {
+        Map<String, Method> properties;
+        List<Method> components = recordAccessors(type);
+        if (components != null) {
+            properties = new LinkedHashMap<String, Method>();
+            for (Method accessor : components) {
+                addProperty(properties, accessor.getName(), accessor);
+            }
+        } else {
+            properties = new TreeMap<String, Method>();
+            for (Method method : type.getMethods()) {
+                String name = propertyName(method);
+                if (name != null) {
+                    addProperty(properties, name, method);
+                }
+            }
+        }
+        return properties;
+    }
+
+    private static void addProperty(Map<String, Method> properties, String name, Method getter) {
+        LogField field = getter.getAnnotation(LogField.class);
+        if (field != null) {
+            if (field.ignore()) {
+                return;
+            }
+            if (field.value().length() > 0) {
+                name = field.value();
+            }
+        }
+        if (properties.put(name, getter) != null) {
+            throw new IllegalArgumentException("Duplicate field " + name + " in "
+                    + getter.getDeclaringClass().getName());
+        }
+    }
+
+    private static String propertyName(Method method) {
+        if (Modifier.isStatic(method.getModifiers()) || method.getParameterTypes().length > 0
+                || method.getDeclaringClass() == Object.class) {
+            return null;
+        }
+        String name = method.getName();
+        int prefix;
+        if (name.startsWith("get") && method.getReturnType() != void.class) {
+            prefix = 3;
+        } else if (name.startsWith("is") && method.getReturnType() == boolean.class) {
+            prefix = 2;
+        } else {
+            return null;
+        }
+        if (name.length() == prefix || !Character.isUpperCase(name.charAt(prefix))) {
+            return null;
+        }
+        // like java.beans.Introspector, "getURL" is the property "URL"
+        if (name.length() > prefix + 1 && Character.isUpperCase(name.charAt(prefix + 1))) {
+            return name.substring(prefix);
+        }
+        return Character.toLowerCase(name.charAt(prefix)) + name.substring(prefix + 1);
+    }
+
+    /**
+     * Returns the accessors of the components of a Java record, or null if <code>type</code> isn't one.
+     * Records are looked up reflectively as they need Java 16.
+     */
+    private static List<Method> recordAccessors(Class<?> type) {
+        try {
+            Method isRecord = Class.class.getMethod("isRecord");
+            if (!(Boolean) isRecord.invoke(type)) {
+                return null;
+            }
+            Object[] components = (Object[]) Class.class.getMethod("getRecordComponents").invoke(type);
+            List<Method> accessors = new ArrayList<Method>();
+            for (Object component : components) {
+                accessors.add((Method) component.getClass().getMethod("getAccessor").invoke(component));
+            }
+            return accessors;
+        } catch (NoSuchMethodException e) {
+            // before Java 16
+            return null;
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -23,4 +23,6 @@ public interface Constants {
 
     String FLUENT_RECONNECTOR_CLASS = "fluentd.logger.reconnector.class";
 
+    String FLUENT_SENDER_DIRECT_BUFFERS = "fluentd.logger.sender.directbuffers";
+
 }
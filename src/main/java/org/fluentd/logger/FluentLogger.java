@@ -21,8 +21,13 @@ import java.util.HashMap;
 import java.util.Map;
 
 import org.fluentd.logger.errorhandler.ErrorHandler;
+import org.fluentd.logger.sampling.Sampler;
+import org.fluentd.logger.sender.EncodedRecord;
+import org.fluentd.logger.sender.EventClock;
 import org.fluentd.logger.sender.Reconnector;
+import org.fluentd.logger.sender.RecordSender;
 import org.fluentd.logger.sender.Sender;
+import org.fluentd.logger.sender.TagCache;
 
 public class FluentLogger {
 
@@ -36,11 +41,11 @@ public class FluentLogger {
         return factory.getLogger(tagPrefix, host, port, 3 * 1000, 1 * 1024 * 1024);
     }
 
-    public static synchronized FluentLogger getLogger(String tagPrefix, String host, int port, int timeout, int bufferCapacity) {
+    public static FluentLogger getLogger(String tagPrefix, String host, int port, int timeout, int bufferCapacity) {
         return factory.getLogger(tagPrefix, host, port, timeout, bufferCapacity);
     }
 
-    public static synchronized FluentLogger getLogger(String tagPrefix, String host, int port, int timeout,
+    public static FluentLogger getLogger(String tagPrefix, String host, int port, int timeout,
             int bufferCapacity, Reconnector reconnector) {
         return factory.getLogger(tagPrefix, host, port, timeout, bufferCapacity, reconnector);
     }
@@ -52,18 +57,37 @@ public class FluentLogger {
         return factory.getLoggers();
     }
 
-    public static synchronized void closeAll() {
+    public static void closeAll() {
         factory.closeAll();
     }
 
-    public static synchronized void flushAll() {
+    public static void flushAll() {
         factory.flushAll();
     }
 
+    private static final ThreadLocal<RecordBuilder> recordBuilders = new ThreadLocal<RecordBuilder>() {
+        @Override
+        protected RecordBuilder initialValue() {
+            return new RecordBuilder();
+        }
+    };
+
     protected String tagPrefix;
 
     protected Sender sender;
 
+    private volatile boolean eventTimeEnabled;
+
+    private volatile Sampler sampler;
+
+    // tags with the prefix, so that logging with a few tags doesn't concatenate them over and over
+    private final TagCache<String> tags = new TagCache<String>() {
+        @Override
+        protected String compute(String tag) {
+            return tagPrefix + "." + tag;
+        }
+    };
+
     protected FluentLogger() {
     }
 
@@ -87,21 +111,158 @@ public class FluentLogger {
     }
 
     public boolean log(String tag, Map<String, Object> data, long timestamp) {
-        String concatTag = null;
-        if (tagPrefix == null || tagPrefix.length() == 0) {
-            concatTag = tag;
-        }
-        else {
-            concatTag = tagPrefix + "." + tag;
+        String concatTag = concatTag(tag);
+        Sampler s = sampler;
+        if (s != null) {
+            int rate = s.sample(concatTag);
+            if (rate == 0) {
+                return true;
+            }
+            data = withSampleRate(data, rate);
         }
 
         if (timestamp != 0) {
             return sender.emit(concatTag, timestamp, data);
+        } else if (eventTimeEnabled) {
+            long now = EventClock.currentTimeNanos();
+            return emit(concatTag, EventClock.seconds(now), EventClock.nanos(now), data);
         } else {
             return sender.emit(concatTag, data);
         }
     }
 
+    /**
+     * Logs an object of a class annotated with {@link LogRecord}, whose properties are the fields of the
+     * record. They're written with a writer generated once per class, without building a map, which needs
+     * Java 7. A map is logged as it is, and any other object as its <code>toString()</code> in the field
+     * <code>message</code>.
+     */
+    @SuppressWarnings("unchecked")
+    public boolean log(String tag, Object bean) {
+        if (bean instanceof Map) {
+            return log(tag, (Map<String, Object>) bean);
+        }
+        if (bean == null || !bean.getClass().isAnnotationPresent(LogRecord.class)) {
+            return log(tag, "message", String.valueOf(bean));
+        }
+        return record(tag).putBean(bean).emit();
+    }
+
+    public boolean log(String tag, String key, Object value, long timestamp, int nanos) {
+        Map<String, Object> data = new HashMap<String, Object>();
+        data.put(key, value);
+        return log(tag, data, timestamp, nanos);
+    }
+
+    /**
+     * Logs the event with an EventTime of <code>timestamp</code> seconds and <code>nanos</code>
+     * nanoseconds. A sender which isn't a {@link RecordSender} gets the seconds only.
+     */
+    public boolean log(String tag, Map<String, Object> data, long timestamp, int nanos) {
+        String concatTag = concatTag(tag);
+        Sampler s = sampler;
+        if (s != null) {
+            int rate = s.sample(concatTag);
+            if (rate == 0) {
+                return true;
+            }
+            data = withSampleRate(data, rate);
+        }
+        return emit(concatTag, timestamp, nanos, data);
+    }
+
+    private static Map<String, Object> withSampleRate(Map<String, Object> data, int rate) {
+        if (rate == 1) {
+            return data;
+        }
+        // the caller's map is left as it is
+        Map<String, Object> sampled = new HashMap<String, Object>(data);
+        sampled.put(Sampler.SAMPLE_RATE_KEY, rate);
+        return sampled;
+    }
+
+    private boolean emit(String concatTag, long timestamp, int nanos, Map<String, Object> data) {
+        if (sender instanceof RecordSender) {
+            return ((RecordSender) sender).emit(concatTag, timestamp, nanos, data);
+        } else {
+            return sender.emit(concatTag, timestamp, data);
+        }
+    }
+
+    /**
+     * Starts building a record to log with the tag, e.g.
+     * <code>logger.record("access").put("latency", 12).put("ok", true).emit()</code>. Fields are encoded as
+     * they're put, into a builder which is reused by the calling thread, so a record has to be emitted
+     * before the thread starts the next one. The sampler decides here whether the record is sent, so the
+     * fields of a record it drops aren't encoded at all.
+     */
+    public RecordBuilder record(String tag) {
+        String concatTag = concatTag(tag);
+        Sampler s = sampler;
+        return recordBuilders.get().start(this, concatTag, s != null ? s.sample(concatTag) : 1);
+    }
+
+    /**
+     * Logs a record built by {@link RecordBuilder}, which the sampler has already let through with
+     * <code>sampleRate</code>; <code>nanos</code> is -1 for a time in seconds.
+     */
+    boolean log(String concatTag, EncodedRecord record, long timestamp, int nanos, int sampleRate) {
+        if (sampleRate > 1) {
+            record.put(Sampler.SAMPLE_RATE_KEY, (long) sampleRate);
+        }
+        if (timestamp == 0) {
+            if (eventTimeEnabled) {
+                long now = EventClock.currentTimeNanos();
+                timestamp = EventClock.seconds(now);
+                nanos = EventClock.nanos(now);
+            } else {
+                timestamp = System.currentTimeMillis() / 1000;
+            }
+        }
+
+        if (!(sender instanceof RecordSender)) {
+            return sender.emit(concatTag, timestamp, record.toMap());
+        } else if (nanos >= 0) {
+            return ((RecordSender) sender).emit(concatTag, timestamp, nanos, record);
+        } else {
+            return ((RecordSender) sender).emit(concatTag, timestamp, record);
+        }
+    }
+
+    /**
+     * Makes events logged without a timestamp carry the current time as an EventTime with nanoseconds,
+     * taken from {@link EventClock}, instead of integer seconds. fluentd reads EventTime since v0.14.
+     */
+    public void setEventTimeEnabled(boolean enabled) {
+        eventTimeEnabled = enabled;
+    }
+
+    public boolean isEventTimeEnabled() {
+        return eventTimeEnabled;
+    }
+
+    /**
+     * Sets a sampler which decides which events are sent, e.g. a {@link org.fluentd.logger.sampling.RateLimitSampler}
+     * to cap the volume of each tag; null, the default, sends all events. Events the sampler drops are not
+     * errors, so <code>log</code> returns true for them.
+     */
+    public void setSampler(Sampler sampler) {
+        this.sampler = sampler;
+    }
+
+    public Sampler getSampler() {
+        return sampler;
+    }
+
+    private String concatTag(String tag) {
+        if (tagPrefix == null || tagPrefix.length() == 0) {
+            return tag;
+        }
+        else {
+            return tags.get(tag);
+        }
+    }
+
     public void flush() {
         sender.flush();
     }
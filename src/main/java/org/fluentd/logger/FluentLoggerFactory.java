@@ -17,26 +17,124 @@
 //
 package org.fluentd.logger;
 
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Properties;
-import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
+import org.fluentd.logger.metrics.SenderMetrics;
+import org.fluentd.logger.sender.AsyncSender;
+import org.fluentd.logger.sender.DatagramSender;
+import org.fluentd.logger.sender.DirectBufferPool;
 import org.fluentd.logger.sender.ExponentialDelayReconnector;
+import org.fluentd.logger.sender.MultiEndpointSender;
+import org.fluentd.logger.sender.PooledSender;
 import org.fluentd.logger.sender.RawSocketSender;
 import org.fluentd.logger.sender.Reconnector;
 import org.fluentd.logger.sender.Sender;
+import org.fluentd.logger.sender.UnixSocketSender;
 
+/**
+ * Creates loggers and hands out the same logger again for the same tag prefix and sender settings, as
+ * long as it's referenced elsewhere. A host given as <code>unix:///path/to/socket</code> makes the logger
+ * send over that Unix domain socket, ignoring the port. Looking up an existing logger takes no lock and
+ * allocates nothing; only creating one is serialized.
+ */
 public class FluentLoggerFactory {
 
-    private final Map<FluentLogger, String> loggers;
+    /**
+     * The settings a logger is registered under. Lookups fill in a per-thread instance instead of
+     * allocating one.
+     */
+    private static final class Key {
+        String tagPrefix;
+
+        String host;
+
+        int port;
+
+        int timeout;
+
+        int bufferCapacity;
+
+        Key set(String tagPrefix, String host, int port, int timeout, int bufferCapacity) {
+            this.tagPrefix = tagPrefix;
+            this.host = host;
+            this.port = port;
+            this.timeout = timeout;
+            this.bufferCapacity = bufferCapacity;
+            return this;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) o;
+            return port == k.port && timeout == k.timeout && bufferCapacity == k.bufferCapacity
+                    && equal(tagPrefix, k.tagPrefix) && equal(host, k.host);
+        }
+
+        private static boolean equal(String a, String b) {
+            return a == null ? b == null : a.equals(b);
+        }
+
+        @Override
+        public int hashCode() {
+            int h = tagPrefix == null ? 0 : tagPrefix.hashCode();
+            h = 31 * h + (host == null ? 0 : host.hashCode());
+            h = 31 * h + port;
+            h = 31 * h + timeout;
+            return 31 * h + bufferCapacity;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s_%s_%d_%d_%d", tagPrefix, host, port, timeout, bufferCapacity);
+        }
+    }
+
+    /**
+     * A registered logger, which is dropped from the registry once the logger has been collected. The
+     * metrics of its sender are unregistered then, in case it was never closed.
+     */
+    private static final class LoggerReference extends WeakReference<FluentLogger> {
+        final Key key;
+
+        final List<SenderMetrics> metrics;
+
+        LoggerReference(FluentLogger logger, Key key, List<SenderMetrics> metrics,
+                ReferenceQueue<FluentLogger> queue) {
+            super(logger, queue);
+            this.key = key;
+            this.metrics = metrics;
+        }
+    }
+
+    private static final ThreadLocal<Key> probes = new ThreadLocal<Key>() {
+        @Override
+        protected Key initialValue() {
+            return new Key();
+        }
+    };
+
+    private final ConcurrentMap<Key, LoggerReference> loggers = new ConcurrentHashMap<Key, LoggerReference>();
+
+    private final ReferenceQueue<FluentLogger> collected = new ReferenceQueue<FluentLogger>();
 
     public FluentLoggerFactory() {
-        loggers = new WeakHashMap<FluentLogger, String>();
     }
 
     public FluentLogger getLogger(String tagPrefix) {
@@ -44,32 +142,52 @@ public class FluentLoggerFactory {
     }
 
     public FluentLogger getLogger(String tagPrefix, String host, int port) {
-        return getLogger(tagPrefix, host, port, 3 * 1000, 1 * 1024 * 1024, new ExponentialDelayReconnector());
+        return getLogger(tagPrefix, host, port, 3 * 1000, 1 * 1024 * 1024);
     }
 
     public FluentLogger getLogger(String tagPrefix, String host, int port, int timeout, int bufferCapacity) {
-        return getLogger(tagPrefix, host, port, timeout, bufferCapacity, new ExponentialDelayReconnector());
+        FluentLogger logger = find(tagPrefix, host, port, timeout, bufferCapacity);
+        if (logger != null) {
+            return logger;
+        }
+        return create(tagPrefix, host, port, timeout, bufferCapacity, new ExponentialDelayReconnector());
     }
 
-    public synchronized FluentLogger getLogger(String tagPrefix, String host, int port, int timeout, int bufferCapacity,
+    public FluentLogger getLogger(String tagPrefix, String host, int port, int timeout, int bufferCapacity,
             Reconnector reconnector) {
-        String key = String.format("%s_%s_%d_%d_%d", new Object[] { tagPrefix, host, port, timeout, bufferCapacity });
-
-        for (Map.Entry<FluentLogger, String> entry : loggers.entrySet()) {
-            if (entry.getValue().equals(key)) {
-                FluentLogger found = entry.getKey();
-                if(found != null) {
-                    return found;
-                }
-                break;
-            }
+        FluentLogger logger = find(tagPrefix, host, port, timeout, bufferCapacity);
+        if (logger != null) {
+            return logger;
+        }
+        return create(tagPrefix, host, port, timeout, bufferCapacity, reconnector);
+    }
+
+    private FluentLogger find(String tagPrefix, String host, int port, int timeout, int bufferCapacity) {
+        LoggerReference ref = loggers.get(probes.get().set(tagPrefix, host, port, timeout, bufferCapacity));
+        return ref != null ? ref.get() : null;
+    }
+
+    private synchronized FluentLogger create(String tagPrefix, String host, int port, int timeout,
+            int bufferCapacity, Reconnector reconnector) {
+        // another thread may have created it in the meantime
+        FluentLogger found = find(tagPrefix, host, port, timeout, bufferCapacity);
+        if (found != null) {
+            return found;
         }
+        expungeCollected();
 
         Sender sender = null;
         Properties props = System.getProperties();
+        String socketPath = UnixSocketSender.parsePath(host);
         if (!props.containsKey(Config.FLUENT_SENDER_CLASS)) {
             // create default sender object
-            sender = new RawSocketSender(host, port, timeout, bufferCapacity, reconnector);
+            DirectBufferPool bufferPool = Boolean.parseBoolean(props.getProperty(Config.FLUENT_SENDER_DIRECT_BUFFERS))
+                    ? DirectBufferPool.shared() : null;
+            if (socketPath != null) {
+                sender = new UnixSocketSender(socketPath, timeout, bufferCapacity, reconnector, bufferPool);
+            } else {
+                sender = new RawSocketSender(host, port, timeout, bufferCapacity, reconnector, bufferPool);
+            }
         } else {
             String senderClassName = props.getProperty(Config.FLUENT_SENDER_CLASS);
             try {
@@ -79,21 +197,46 @@ public class FluentLoggerFactory {
             }
         }
         FluentLogger logger = new FluentLogger(tagPrefix, sender);
-        loggers.put(logger, key);
+        Key key = new Key().set(tagPrefix, host, port, timeout, bufferCapacity);
+        loggers.put(key, new LoggerReference(logger, key, metricsOf(sender), collected));
         return logger;
     }
 
+    private static List<SenderMetrics> metricsOf(Sender sender) {
+        if (sender instanceof RawSocketSender) {
+            return Collections.singletonList(((RawSocketSender) sender).getMetrics());
+        } else if (sender instanceof AsyncSender) {
+            return Collections.singletonList(((AsyncSender) sender).getMetrics());
+        } else if (sender instanceof DatagramSender) {
+            return Collections.singletonList(((DatagramSender) sender).getMetrics());
+        } else if (sender instanceof PooledSender) {
+            return ((PooledSender) sender).getMetrics();
+        } else if (sender instanceof MultiEndpointSender) {
+            return ((MultiEndpointSender) sender).getMetrics();
+        }
+        return Collections.emptyList();
+    }
+
+    private void expungeCollected() {
+        LoggerReference ref;
+        while ((ref = (LoggerReference) collected.poll()) != null) {
+            loggers.remove(ref.key, ref);
+            for (SenderMetrics metrics : ref.metrics) {
+                metrics.unregister();
+            }
+        }
+    }
+
     /** Purges an invalid logger from the cache.
      */
-	protected synchronized void purgeLogger(FluentLogger logger) {
-		Iterator<Entry<FluentLogger, String>> it = loggers.entrySet().iterator();
-		while (it.hasNext()) {
-			if (it.next().getKey() == logger) {
-				it.remove();
-				return;
-			}
-		}
-	}
+    protected void purgeLogger(FluentLogger logger) {
+        for (LoggerReference ref : loggers.values()) {
+            if (ref.get() == logger) {
+                loggers.remove(ref.key, ref);
+                return;
+            }
+        }
+    }
 
     @SuppressWarnings("unchecked")
     private Sender createSenderInstance(final String className, final Object[] params) throws ClassNotFoundException,
@@ -109,18 +252,49 @@ public class FluentLoggerFactory {
      * the method is for testing
      */
     Map<FluentLogger, String> getLoggers() {
-        return loggers;
+        expungeCollected();
+        Map<FluentLogger, String> live = new HashMap<FluentLogger, String>();
+        for (LoggerReference ref : loggers.values()) {
+            FluentLogger logger = ref.get();
+            if (logger != null) {
+                live.put(logger, ref.key.toString());
+            }
+        }
+        return live;
+    }
+
+    private List<FluentLogger> liveLoggers() {
+        List<FluentLogger> live = new ArrayList<FluentLogger>();
+        for (LoggerReference ref : loggers.values()) {
+            FluentLogger logger = ref.get();
+            if (logger != null) {
+                live.add(logger);
+            }
+        }
+        return live;
     }
 
-    public synchronized void closeAll() {
-        for (FluentLogger logger : new ArrayList<FluentLogger>(loggers.keySet())) {
+    /**
+     * Closes the registered loggers. They're taken out of the registry under the lock, but closed outside
+     * it, so that a slow close doesn't hold up creating loggers.
+     */
+    public void closeAll() {
+        List<FluentLogger> live;
+        synchronized (this) {
+            live = liveLoggers();
+            loggers.clear();
+        }
+        for (FluentLogger logger : live) {
             logger.close();
         }
-        loggers.clear();
     }
 
-    public synchronized void flushAll() {
-        for (FluentLogger logger : loggers.keySet()) {
+    public void flushAll() {
+        List<FluentLogger> live;
+        synchronized (this) {
+            live = liveLoggers();
+        }
+        for (FluentLogger logger : live) {
             logger.flush();
         }
     }
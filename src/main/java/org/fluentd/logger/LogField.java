@@ -0,0 +1,44 @@
+//
+// A Structured Logger for Fluent
+//
+// Copyright (C) 2011 - 2013 Muga Nishizawa
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//
+package org.fluentd.logger;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Customizes the field of a property of a {@link LogRecord} class. It's put on the getter, or on the
+ * component of a Java record.
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface LogField {
+
+    /**
+     * The key of the field; the property name by default.
+     */
+    String value() default "";
+
+    /**
+     * Whether to leave the property out of the record.
+     */
+    boolean ignore() default false;
+}
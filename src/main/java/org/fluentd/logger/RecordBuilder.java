@@ -0,0 +1,136 @@
+//
+// A Structured Logger for Fluent
+//
+// Copyright (C) 2011 - 2013 FURUHASHI Sadayuki
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//
+package org.fluentd.logger;
+
+import org.fluentd.logger.sender.EncodedRecord;
+
+/**
+ * Builds a record field by field, see {@link FluentLogger#record(String)}. Primitive values are encoded
+ * without boxing them.
+ */
+public class RecordBuilder {
+
+    private final EncodedRecord record = new EncodedRecord();
+
+    private FluentLogger logger;
+
+    // with the logger's prefix
+    private String tag;
+
+    // 0 if the sampler dropped the record, which is then neither encoded nor sent
+    private int sampleRate;
+
+    private long timestamp;
+
+    // -1 unless the time has nanoseconds
+    private int nanos;
+
+    RecordBuilder() {
+    }
+
+    RecordBuilder start(FluentLogger logger, String tag, int sampleRate) {
+        this.logger = logger;
+        this.tag = tag;
+        this.sampleRate = sampleRate;
+        timestamp = 0;
+        nanos = -1;
+        record.clear();
+        return this;
+    }
+
+    /**
+     * Sets the time of the event in seconds; it's the current time by default.
+     */
+    public RecordBuilder timestamp(long timestamp) {
+        this.timestamp = timestamp;
+        nanos = -1;
+        return this;
+    }
+
+    /**
+     * Sets the time of the event as an EventTime, in seconds and nanoseconds.
+     */
+    public RecordBuilder timestamp(long timestamp, int nanos) {
+        if (nanos < 0 || nanos > 999999999) {
+            throw new IllegalArgumentException("nanos out of range: " + nanos);
+        }
+        this.timestamp = timestamp;
+        this.nanos = nanos;
+        return this;
+    }
+
+    public RecordBuilder put(String key, long value) {
+        if (sampleRate != 0) {
+            record.put(key, value);
+        }
+        return this;
+    }
+
+    public RecordBuilder put(String key, double value) {
+        if (sampleRate != 0) {
+            record.put(key, value);
+        }
+        return this;
+    }
+
+    public RecordBuilder put(String key, boolean value) {
+        if (sampleRate != 0) {
+            record.put(key, value);
+        }
+        return this;
+    }
+
+    public RecordBuilder put(String key, String value) {
+        if (sampleRate != 0) {
+            record.put(key, value);
+        }
+        return this;
+    }
+
+    public RecordBuilder put(String key, Object value) {
+        if (sampleRate != 0) {
+            record.put(key, value);
+        }
+        return this;
+    }
+
+    /**
+     * Puts the properties of an object of a {@link LogRecord} class, see
+     * {@link FluentLogger#log(String, Object)}.
+     */
+    public RecordBuilder putBean(Object bean) {
+        if (sampleRate != 0) {
+            BeanWriter.of(bean.getClass()).write(record, bean);
+        }
+        return this;
+    }
+
+    public boolean emit() {
+        if (logger == null) {
+            throw new IllegalStateException("The record has already been emitted");
+        }
+        try {
+            // a dropped record isn't an error
+            return sampleRate == 0 || logger.log(tag, record, timestamp, nanos, sampleRate);
+        } finally {
+            logger = null;
+            tag = null;
+            record.clear();
+        }
+    }
+}
@@ -2,6 +2,16 @@ package org.fluentd.logger.errorhandler;
 
 import java.io.IOException;
 
+import org.fluentd.logger.sender.Event;
+
 public abstract class ErrorHandler {
     public void handleNetworkError(IOException ex) {};
+
+    /**
+     * Called with an event that a sender could not buffer, e.g. when the queue of
+     * {@link org.fluentd.logger.sender.AsyncSender} or the buffer of a
+     * {@link org.fluentd.logger.sender.RawSocketSender} is full and its overflow policy is
+     * {@link org.fluentd.logger.sender.OverflowPolicy#CALLBACK}.
+     */
+    public void handleBufferOverflow(Event event) {};
 }
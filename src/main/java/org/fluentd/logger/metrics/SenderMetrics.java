@@ -0,0 +1,261 @@
+//
+// A Structured Logger for Fluent
+//
+// Copyright (C) 2011 - 2013 Muga Nishizawa
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//
+package org.fluentd.logger.metrics;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects the metrics of a sender. Recording doesn't take locks: events are counted with
+ * {@link StripedCounter}s, and the rest is recorded by the thread holding the sender's lock.
+ */
+public class SenderMetrics implements SenderMetricsMXBean {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SenderMetrics.class);
+
+    private static final String DOMAIN = "org.fluentd.logger";
+
+    private final StripedCounter eventsEmitted = new StripedCounter();
+
+    private final StripedCounter eventsDropped = new StripedCounter();
+
+    private final AtomicLong eventsEvicted = new AtomicLong();
+
+    private final AtomicLong blockTimeouts = new AtomicLong();
+
+    private final AtomicLong bytesSent = new AtomicLong();
+
+    private final AtomicLong flushCount = new AtomicLong();
+
+    private final AtomicLong flushErrors = new AtomicLong();
+
+    private final LatencyHistogram flushLatency = new LatencyHistogram();
+
+    private final AtomicInteger pendingBytes = new AtomicInteger();
+
+    private final int bufferCapacity;
+
+    private final AtomicLong reconnectAttempts = new AtomicLong();
+
+    private final AtomicLong backoffMillis = new AtomicLong();
+
+    /** When the current backoff started, or 0. */
+    private volatile long backoffStart;
+
+    private ObjectName objectName;
+
+    public SenderMetrics(int bufferCapacity) {
+        this.bufferCapacity = bufferCapacity;
+    }
+
+    public void eventEmitted() {
+        eventsEmitted.increment();
+    }
+
+    public void eventDropped() {
+        eventsDropped.increment();
+    }
+
+    public void eventsDropped(int count) {
+        eventsDropped.add(count);
+    }
+
+    /**
+     * Records buffered events dropped for newer ones, which also counts them as dropped.
+     */
+    public void eventsEvicted(int count) {
+        eventsDropped.add(count);
+        eventsEvicted.addAndGet(count);
+    }
+
+    /**
+     * Records that waiting for room for an event timed out; the event is recorded as dropped separately.
+     */
+    public void blockTimedOut() {
+        blockTimeouts.incrementAndGet();
+    }
+
+    public void bytesSent(long bytes) {
+        bytesSent.addAndGet(bytes);
+    }
+
+    public void flushed(long nanos) {
+        flushCount.incrementAndGet();
+        flushLatency.record(nanos / 1000);
+    }
+
+    public void flushFailed(long now) {
+        flushErrors.incrementAndGet();
+        if (backoffStart == 0) {
+            backoffStart = now;
+        }
+    }
+
+    public void pendingBytes(int bytes) {
+        pendingBytes.lazySet(bytes);
+    }
+
+    /**
+     * Records an attempt to connect; it ends the backoff which started with the last failure, if any.
+     */
+    public void connecting(long now) {
+        long start = backoffStart;
+        if (start != 0) {
+            reconnectAttempts.incrementAndGet();
+            backoffMillis.addAndGet(now - start);
+            backoffStart = 0;
+        }
+    }
+
+    @Override
+    public long getEventsEmitted() {
+        return eventsEmitted.get();
+    }
+
+    @Override
+    public long getEventsDropped() {
+        return eventsDropped.get();
+    }
+
+    @Override
+    public long getEventsEvicted() {
+        return eventsEvicted.get();
+    }
+
+    @Override
+    public long getBlockTimeouts() {
+        return blockTimeouts.get();
+    }
+
+    @Override
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    @Override
+    public long getFlushCount() {
+        return flushCount.get();
+    }
+
+    @Override
+    public long getFlushErrors() {
+        return flushErrors.get();
+    }
+
+    @Override
+    public long getFlushLatencyMaxMicros() {
+        return flushLatency.getMax();
+    }
+
+    @Override
+    public double getFlushLatencyMeanMicros() {
+        return flushLatency.getMean();
+    }
+
+    @Override
+    public long getFlushLatencyP50Micros() {
+        return flushLatency.getPercentile(50);
+    }
+
+    @Override
+    public long getFlushLatencyP99Micros() {
+        return flushLatency.getPercentile(99);
+    }
+
+    @Override
+    public long[] getFlushLatencyHistogram() {
+        return flushLatency.getBuckets();
+    }
+
+    @Override
+    public int getPendingBytes() {
+        return pendingBytes.get();
+    }
+
+    @Override
+    public int getBufferCapacity() {
+        return bufferCapacity;
+    }
+
+    @Override
+    public long getReconnectAttempts() {
+        return reconnectAttempts.get();
+    }
+
+    @Override
+    public long getBackoffMillis() {
+        long start = backoffStart;
+        return backoffMillis.get() + (start != 0 ? System.currentTimeMillis() - start : 0);
+    }
+
+    /**
+     * Registers the metrics with the platform MBean server under the sender's name. Senders of the same name
+     * are told apart by an <code>instance</code> key. Failing to register is logged and otherwise ignored.
+     */
+    public synchronized void register(String name) {
+        if (objectName != null) {
+            return;
+        }
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        String base = String.format("%s:type=Sender,name=%s", DOMAIN, ObjectName.quote(name));
+        try {
+            ObjectName candidate = new ObjectName(base);
+            for (int instance = 2; ; instance++) {
+                try {
+                    server.registerMBean(this, candidate);
+                    objectName = candidate;
+                    return;
+                } catch (InstanceAlreadyExistsException e) {
+                    candidate = new ObjectName(base + ",instance=" + instance);
+                }
+            }
+        } catch (JMException e) {
+            LOG.warn("Cannot register metrics of " + name, e);
+        } catch (SecurityException e) {
+            LOG.warn("Cannot register metrics of " + name, e);
+        }
+    }
+
+    public synchronized void unregister() {
+        if (objectName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (JMException e) {
+            LOG.debug("Cannot unregister " + objectName, e);
+        } finally {
+            objectName = null;
+        }
+    }
+
+    /**
+     * Returns the name the metrics are registered under, or null.
+     */
+    public synchronized ObjectName getObjectName() {
+        return objectName;
+    }
+}
@@ -0,0 +1,65 @@
+//
+// A Structured Logger for Fluent
+//
+// Copyright (C) 2011 - 2013 Muga Nishizawa
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//
+package org.fluentd.logger.metrics;
+
+/**
+ * Metrics of a sender, registered as <code>org.fluentd.logger:type=Sender,name="&lt;sender name&gt;"</code>.
+ */
+public interface SenderMetricsMXBean {
+    /** Events accepted into the buffer. */
+    long getEventsEmitted();
+
+    /** Events which were dropped, e.g. because the buffer was full and couldn't be flushed. */
+    long getEventsDropped();
+
+    /** Buffered events which were dropped to make room for newer ones; they're among the dropped events. */
+    long getEventsEvicted();
+
+    /** Events which were dropped after waiting for room in the buffer for too long. */
+    long getBlockTimeouts();
+
+    long getBytesSent();
+
+    /** Batches of buffered data which have been written out completely. */
+    long getFlushCount();
+
+    /** Failed attempts to connect or write. */
+    long getFlushErrors();
+
+    long getFlushLatencyMaxMicros();
+
+    double getFlushLatencyMeanMicros();
+
+    long getFlushLatencyP50Micros();
+
+    long getFlushLatencyP99Micros();
+
+    /** Counts of flush latencies; bucket <code>i</code> counts those below 2<sup>i</sup> microseconds. */
+    long[] getFlushLatencyHistogram();
+
+    /** Bytes buffered and not sent yet. */
+    int getPendingBytes();
+
+    int getBufferCapacity();
+
+    /** Attempts to connect after a connection was lost or couldn't be established. */
+    long getReconnectAttempts();
+
+    /** Milliseconds spent waiting for the reconnector to allow another attempt. */
+    long getBackoffMillis();
+}
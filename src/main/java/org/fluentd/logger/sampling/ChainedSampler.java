@@ -0,0 +1,43 @@
+//
+// A Structured Logger for Fluent
+//
+// Copyright (C) 2011 - 2013 Muga Nishizawa
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//
+package org.fluentd.logger.sampling;
+
+/**
+ * Applies several samplers in turn, e.g. a rate limit after probabilistic sampling. An event is dropped
+ * if any of them drops it, and the sample rates multiply.
+ */
+public class ChainedSampler implements Sampler {
+
+    private final Sampler[] samplers;
+
+    public ChainedSampler(Sampler... samplers) {
+        this.samplers = samplers.clone();
+    }
+
+    public int sample(String tag) {
+        int rate = 1;
+        for (Sampler sampler : samplers) {
+            int r = sampler.sample(tag);
+            if (r == 0) {
+                return 0;
+            }
+            rate *= r;
+        }
+        return rate;
+    }
+}
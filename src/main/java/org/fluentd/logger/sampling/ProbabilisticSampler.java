@@ -0,0 +1,75 @@
+//
+// A Structured Logger for Fluent
+//
+// Copyright (C) 2011 - 2013 Muga Nishizawa
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//
+package org.fluentd.logger.sampling;
+
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Sends one in <code>n</code> events of each tag, picked at random, and records <code>n</code> as the
+ * sample rate of the events it sends, so that counts can be scaled back up downstream.
+ */
+public class ProbabilisticSampler implements Sampler {
+
+    private static final ThreadLocal<Random> randoms = new ThreadLocal<Random>() {
+        @Override
+        protected Random initialValue() {
+            return new Random();
+        }
+    };
+
+    private final int rate;
+
+    private final ConcurrentMap<String, Integer> rates = new ConcurrentHashMap<String, Integer>();
+
+    /**
+     * @param rate send one in <code>rate</code> events; 1 sends all of them
+     */
+    public ProbabilisticSampler(int rate) {
+        this.rate = checkRate(rate);
+    }
+
+    private static int checkRate(int rate) {
+        if (rate <= 0) {
+            throw new IllegalArgumentException("rate must be positive: " + rate);
+        }
+        return rate;
+    }
+
+    /**
+     * Sets a sample rate for the tag other than the default one of the constructor.
+     */
+    public void setRate(String tag, int rate) {
+        rates.put(tag, checkRate(rate));
+    }
+
+    public int sample(String tag) {
+        int n = rate;
+        if (!rates.isEmpty()) {
+            Integer r = rates.get(tag);
+            if (r != null) {
+                n = r;
+            }
+        }
+        if (n == 1) {
+            return 1;
+        }
+        return randoms.get().nextInt(n) == 0 ? n : 0;
+    }
+}
@@ -0,0 +1,123 @@
+//
+// A Structured Logger for Fluent
+//
+// Copyright (C) 2011 - 2013 Muga Nishizawa
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//
+package org.fluentd.logger.sampling;
+
+import org.fluentd.logger.metrics.StripedCounter;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits the rate of events of each tag with a token bucket, and drops the events over the limit. A
+ * bucket is a single timestamp updated with compare-and-set, so tags under their limit cost a map lookup
+ * and one CAS, and threads never block. Buckets are kept for every tag seen.
+ */
+public class RateLimitSampler implements Sampler {
+
+    private static final long NANOS_PER_SECOND = 1000L * 1000L * 1000L;
+
+    /**
+     * A bucket of the generic cell rate algorithm: <code>nextFree</code> is when the bucket will be full
+     * again, and an event is let through if that's at most <code>burst</code> intervals away.
+     */
+    private static final class Bucket {
+        final long intervalNanos;
+
+        final long toleranceNanos;
+
+        final AtomicLong nextFree = new AtomicLong(Long.MIN_VALUE);
+
+        Bucket(double eventsPerSecond, int burst) {
+            intervalNanos = Math.max(1, (long) (NANOS_PER_SECOND / eventsPerSecond));
+            toleranceNanos = intervalNanos * burst;
+        }
+
+        boolean tryAcquire(long now) {
+            while (true) {
+                long current = nextFree.get();
+                long start = current == Long.MIN_VALUE || current < now ? now : current;
+                long next = start + intervalNanos;
+                if (next - now > toleranceNanos) {
+                    return false;
+                }
+                if (nextFree.compareAndSet(current, next)) {
+                    return true;
+                }
+            }
+        }
+    }
+
+    private final double eventsPerSecond;
+
+    private final int burst;
+
+    private final ConcurrentMap<String, Bucket> buckets = new ConcurrentHashMap<String, Bucket>();
+
+    private final StripedCounter dropped = new StripedCounter();
+
+    /**
+     * @param eventsPerSecond the sustained rate of events let through per tag
+     * @param burst how many events of a tag may be let through at once after a quiet period
+     */
+    public RateLimitSampler(double eventsPerSecond, int burst) {
+        checkLimit(eventsPerSecond, burst);
+        this.eventsPerSecond = eventsPerSecond;
+        this.burst = burst;
+    }
+
+    private static void checkLimit(double eventsPerSecond, int burst) {
+        if (!(eventsPerSecond > 0)) {
+            throw new IllegalArgumentException("eventsPerSecond must be positive: " + eventsPerSecond);
+        }
+        if (burst <= 0) {
+            throw new IllegalArgumentException("burst must be positive: " + burst);
+        }
+    }
+
+    /**
+     * Sets a limit for the tag other than the default one of the constructor.
+     */
+    public void setLimit(String tag, double eventsPerSecond, int burst) {
+        checkLimit(eventsPerSecond, burst);
+        buckets.put(tag, new Bucket(eventsPerSecond, burst));
+    }
+
+    public int sample(String tag) {
+        Bucket bucket = buckets.get(tag);
+        if (bucket == null) {
+            Bucket created = new Bucket(eventsPerSecond, burst);
+            bucket = buckets.putIfAbsent(tag, created);
+            if (bucket == null) {
+                bucket = created;
+            }
+        }
+        if (bucket.tryAcquire(System.nanoTime())) {
+            return 1;
+        }
+        dropped.increment();
+        return 0;
+    }
+
+    /**
+     * Returns the number of events dropped for being over the limit.
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+}
@@ -0,0 +1,35 @@
+//
+// A Structured Logger for Fluent
+//
+// Copyright (C) 2011 - 2013 Muga Nishizawa
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//
+package org.fluentd.logger.sampling;
+
+/**
+ * Decides which events a {@link org.fluentd.logger.FluentLogger} sends, see
+ * {@link org.fluentd.logger.FluentLogger#setSampler(Sampler)}. It's called for every event, from any
+ * thread, so implementations must be thread-safe and cheap.
+ */
+public interface Sampler {
+
+    /** The record key under which the sample rate of a sampled event is recorded. */
+    String SAMPLE_RATE_KEY = "sample_rate";
+
+    /**
+     * Returns 0 to drop the event with the tag, 1 to send it as it is, or n &gt; 1 to send it as the
+     * representative of n events, in which case n is recorded in the event under {@link #SAMPLE_RATE_KEY}.
+     */
+    int sample(String tag);
+}
@@ -0,0 +1,170 @@
+//
+// A Structured Logger for Fluent
+//
+// Copyright (C) 2011 - 2013 Muga Nishizawa
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//
+package org.fluentd.logger.sender;
+
+import org.msgpack.MessagePack;
+import org.msgpack.type.Value;
+import org.msgpack.unpacker.BufferUnpacker;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Chunks which have been sent with the <code>chunk</code> option but not acknowledged by fluentd yet.
+ * They are kept so that they can be sent again over a new connection, and their number is bounded so
+ * that several chunks can be in flight while a slow fluentd still throttles the sender.
+ */
+class AckWindow {
+
+    static class Chunk {
+        final String id;
+
+        final byte[] bytes;
+
+        long sentAt;
+
+        Chunk(String id, byte[] bytes) {
+            this.id = id;
+            this.bytes = bytes;
+        }
+    }
+
+    private final MessagePack msgpack;
+
+    private final int ackTimeout;
+
+    private final int maxInFlight;
+
+    private final Map<String, Chunk> chunks = new LinkedHashMap<String, Chunk>();
+
+    private final String idPrefix = Long.toHexString(new Random().nextLong()) + "-";
+
+    private long sequence;
+
+    private byte[] responses = new byte[256];
+
+    private int responsesLength;
+
+    AckWindow(MessagePack msgpack, int ackTimeout, int maxInFlight) {
+        if (ackTimeout <= 0) {
+            throw new IllegalArgumentException("ackTimeout must be positive: " + ackTimeout);
+        }
+        if (maxInFlight <= 0) {
+            throw new IllegalArgumentException("maxInFlight must be positive: " + maxInFlight);
+        }
+        this.msgpack = msgpack;
+        this.ackTimeout = ackTimeout;
+        this.maxInFlight = maxInFlight;
+    }
+
+    int getAckTimeout() {
+        return ackTimeout;
+    }
+
+    String nextChunkId() {
+        return idPrefix + Long.toHexString(sequence++);
+    }
+
+    void add(Chunk chunk, long now) {
+        chunk.sentAt = now;
+        chunks.put(chunk.id, chunk);
+    }
+
+    boolean isFull() {
+        return chunks.size() >= maxInFlight;
+    }
+
+    boolean isEmpty() {
+        return chunks.isEmpty();
+    }
+
+    int size() {
+        return chunks.size();
+    }
+
+    Collection<Chunk> chunks() {
+        return chunks.values();
+    }
+
+    /**
+     * Returns how long to wait for the oldest chunk to be acknowledged, which is negative once it has
+     * timed out.
+     */
+    long remaining(long now) {
+        if (chunks.isEmpty()) {
+            return ackTimeout;
+        }
+        return chunks.values().iterator().next().sentAt + ackTimeout - now;
+    }
+
+    /**
+     * Discards the responses of a connection which has been closed; they may end in the middle of a
+     * response.
+     */
+    void resetResponses() {
+        responsesLength = 0;
+    }
+
+    /**
+     * Takes bytes read from the connection, and removes the chunks acknowledged by the complete
+     * <code>{"ack": chunk}</code> responses among them.
+     */
+    void received(byte[] bytes, int off, int len) throws IOException {
+        if (responsesLength + len > responses.length) {
+            byte[] grown = new byte[Math.max(responses.length * 2, responsesLength + len)];
+            System.arraycopy(responses, 0, grown, 0, responsesLength);
+            responses = grown;
+        }
+        System.arraycopy(bytes, off, responses, responsesLength, len);
+        responsesLength += len;
+
+        int consumed = 0;
+        while (consumed < responsesLength) {
+            BufferUnpacker u = msgpack.createBufferUnpacker();
+            u.wrap(responses, consumed, responsesLength - consumed);
+            Value response;
+            try {
+                response = u.readValue();
+            } catch (EOFException e) {
+                // wait for the rest of the response
+                break;
+            }
+            consumed += u.getReadByteCount();
+            acknowledge(response);
+        }
+        System.arraycopy(responses, consumed, responses, 0, responsesLength - consumed);
+        responsesLength -= consumed;
+    }
+
+    private void acknowledge(Value response) throws IOException {
+        if (!response.isMapValue()) {
+            throw new IOException("Unexpected response: " + response);
+        }
+        for (Map.Entry<Value, Value> entry : response.asMapValue().entrySet()) {
+            if (entry.getKey().isRawValue() && "ack".equals(entry.getKey().asRawValue().getString())) {
+                chunks.remove(entry.getValue().asRawValue().getString());
+                return;
+            }
+        }
+        throw new IOException("Unexpected response: " + response);
+    }
+}
@@ -0,0 +1,395 @@
+//
+// A Structured Logger for Fluent
+//
+// Copyright (C) 2011 - 2013 Muga Nishizawa
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//
+package org.fluentd.logger.sender;
+
+import org.fluentd.logger.errorhandler.ErrorHandler;
+import org.fluentd.logger.metrics.SenderMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Sends events from a dedicated I/O thread. {@link #emit} only fills a slot of a bounded
+ * {@link EventRingBuffer}, so callers never wait on the network and don't allocate; the I/O thread takes
+ * runs of filled slots, serializes them into a {@link RawSocketSender} and flushes it once per run.
+ */
+public class AsyncSender implements RecordSender {
+
+    private static final Logger LOG = LoggerFactory.getLogger(AsyncSender.class);
+
+    private static final ErrorHandler DEFAULT_ERROR_HANDLER = new ErrorHandler() {};
+
+    public static final int DEFAULT_QUEUE_SIZE = 16 * 1024;
+
+    private static final int MAX_BATCH_SIZE = 1024;
+
+    private static final long POLL_INTERVAL_MILLIS = 100;
+
+    private static final long MAX_BLOCK_BACKOFF_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private static final long TIMED_OUT = -2;
+
+    private final RawSocketSender sender;
+
+    private final EventRingBuffer ring;
+
+    private final OverflowPolicy overflowPolicy;
+
+    // how long BLOCK waits for a free slot, or 0 for as long as it takes
+    private final long blockTimeoutMillis;
+
+    private final Thread ioThread;
+
+    private final ReentrantLock drainLock = new ReentrantLock();
+
+    private final Condition drainedCondition = drainLock.newCondition();
+
+    private final String name;
+
+    private final int timeout;
+
+    private ErrorHandler errorHandler = DEFAULT_ERROR_HANDLER;
+
+    public AsyncSender() {
+        this("localhost", 24224);
+    }
+
+    public AsyncSender(String host, int port) {
+        this(host, port, 3 * 1000, 8 * 1024 * 1024);
+    }
+
+    public AsyncSender(String host, int port, int timeout, int bufferCapacity) {
+        this(host, port, timeout, bufferCapacity, new ExponentialDelayReconnector());
+    }
+
+    public AsyncSender(String host, int port, int timeout, int bufferCapacity, Reconnector reconnector) {
+        this(host, port, timeout, bufferCapacity, reconnector, DEFAULT_QUEUE_SIZE, OverflowPolicy.DROP);
+    }
+
+    public AsyncSender(String host, int port, int timeout, int bufferCapacity, Reconnector reconnector,
+            int queueSize, OverflowPolicy overflowPolicy) {
+        this(new RawSocketSender(host, port, timeout, bufferCapacity, reconnector), timeout, queueSize,
+                overflowPolicy);
+    }
+
+    /**
+     * Creates a sender which writes the queued events through <code>sender</code>, e.g. one set up with
+     * {@link RawSocketSender#setPackedForward(boolean)}. The <code>sender</code> must not be used directly
+     * afterwards. <code>queueSize</code> is rounded up to a power of two.
+     */
+    public AsyncSender(RawSocketSender sender, int timeout, int queueSize, OverflowPolicy overflowPolicy) {
+        this(sender, timeout, queueSize, overflowPolicy, 0);
+    }
+
+    /**
+     * Creates a sender whose emitting threads wait at most <code>blockTimeoutMillis</code> for room in the
+     * queue with {@link OverflowPolicy#BLOCK}, and then drop the event; 0 waits as long as it takes.
+     * {@link OverflowPolicy#DROP_OLDEST} isn't supported, since only the I/O thread takes events out of
+     * the queue; set it on <code>sender</code> instead.
+     */
+    public AsyncSender(RawSocketSender sender, int timeout, int queueSize, OverflowPolicy overflowPolicy,
+            long blockTimeoutMillis) {
+        if (queueSize <= 0) {
+            throw new IllegalArgumentException("queueSize must be positive: " + queueSize);
+        }
+        if (overflowPolicy == null) {
+            throw new IllegalArgumentException("overflowPolicy is null");
+        }
+        if (overflowPolicy == OverflowPolicy.DROP_OLDEST) {
+            throw new IllegalArgumentException("AsyncSender doesn't support " + overflowPolicy);
+        }
+        if (blockTimeoutMillis < 0) {
+            throw new IllegalArgumentException("blockTimeoutMillis must not be negative: " + blockTimeoutMillis);
+        }
+        this.blockTimeoutMillis = blockTimeoutMillis;
+        this.sender = sender;
+        ring = new EventRingBuffer(queueSize);
+        this.overflowPolicy = overflowPolicy;
+        this.timeout = timeout;
+        name = String.format("async_%s", sender.getName());
+        ioThread = new Thread(new Runnable() {
+            public void run() {
+                drain();
+            }
+        }, "fluent-logger-" + name);
+        ioThread.setDaemon(true);
+        ioThread.start();
+    }
+
+    @Override
+    public boolean emit(String tag, Map<String, Object> data) {
+        return emit(tag, System.currentTimeMillis() / 1000, data);
+    }
+
+    @Override
+    public boolean emit(String tag, long timestamp, Map<String, Object> data) {
+        return emit(tag, timestamp, -1, data, null);
+    }
+
+    /**
+     * Copies the record into the queue, since the caller may reuse it once this returns.
+     */
+    @Override
+    public boolean emit(String tag, long timestamp, EncodedRecord record) {
+        return emit(tag, timestamp, -1, null, record);
+    }
+
+    @Override
+    public boolean emit(String tag, long timestamp, int nanos, Map<String, Object> data) {
+        Event.checkNanos(nanos);
+        return emit(tag, timestamp, nanos, data, null);
+    }
+
+    @Override
+    public boolean emit(String tag, long timestamp, int nanos, EncodedRecord record) {
+        Event.checkNanos(nanos);
+        return emit(tag, timestamp, nanos, null, record);
+    }
+
+    protected boolean emit(Event event) {
+        return emit(event.tag, event.timestamp, event.eventTime ? event.nanos : -1, event.data, event.record);
+    }
+
+    /**
+     * Fills a slot of the ring in place; <code>nanos</code> is -1 for an event without an EventTime.
+     */
+    private boolean emit(String tag, long timestamp, int nanos, Map<String, Object> data,
+            EncodedRecord record) {
+        long sequence = ring.tryClaim();
+        if (sequence < 0 && ring.isClosed()) {
+            // the I/O thread may already have drained the ring for the last time
+            LOG.error("Cannot emit an event with tag {}: sender is already closed", tag);
+            sender.getMetrics().eventDropped();
+            return false;
+        }
+        if (sequence < 0) {
+            switch (overflowPolicy) {
+            case BLOCK:
+                sequence = claimBlocking();
+                if (sequence < 0) {
+                    if (sequence == TIMED_OUT) {
+                        LOG.debug("Dropped an event with tag {}: queue stayed full for {} ms", tag,
+                                blockTimeoutMillis);
+                        sender.getMetrics().blockTimedOut();
+                        sender.getMetrics().eventDropped();
+                    } else if (ring.isClosed()) {
+                        sender.getMetrics().eventDropped();
+                    }
+                    return false;
+                }
+                break;
+            case CALLBACK:
+                try {
+                    errorHandler.handleBufferOverflow(newEvent(tag, timestamp, nanos, data, record));
+                } catch (Exception handlerException) {
+                    LOG.warn("ErrorHandler.handleBufferOverflow failed", handlerException);
+                }
+                sender.getMetrics().eventDropped();
+                return false;
+            default:
+                LOG.debug("Dropped an event with tag {}: queue is full", tag);
+                sender.getMetrics().eventDropped();
+                return false;
+            }
+        }
+
+        // a claimed slot must always be published, or the I/O thread would stop at it
+        Event slot = ring.slot(sequence);
+        try {
+            slot.tag = tag;
+            slot.timestamp = timestamp;
+            slot.eventTime = nanos >= 0;
+            slot.nanos = slot.eventTime ? nanos : 0;
+            if (record != null) {
+                EncodedRecord copy = ring.record(sequence);
+                copy.copyFrom(record);
+                slot.record = copy;
+            } else {
+                slot.data = data;
+            }
+        } finally {
+            ring.publish(sequence);
+        }
+        return true;
+    }
+
+    /**
+     * Waits for a free slot, backing off up to a millisecond between attempts. Returns {@link #TIMED_OUT}
+     * after the block timeout, and -1 if the sender is closed or the thread is interrupted meanwhile.
+     */
+    private long claimBlocking() {
+        long backoff = 1000;
+        long deadline = blockTimeoutMillis > 0
+                ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(blockTimeoutMillis) : 0;
+        while (true) {
+            long sequence = ring.tryClaim();
+            if (sequence >= 0) {
+                return sequence;
+            }
+            if (ring.isClosed() || Thread.currentThread().isInterrupted()) {
+                return -1;
+            }
+            if (deadline != 0 && System.nanoTime() - deadline >= 0) {
+                return TIMED_OUT;
+            }
+            LockSupport.parkNanos(this, backoff);
+            backoff = Math.min(backoff * 2, MAX_BLOCK_BACKOFF_NANOS);
+        }
+    }
+
+    private static Event newEvent(String tag, long timestamp, int nanos, Map<String, Object> data,
+            EncodedRecord record) {
+        if (record != null) {
+            return nanos >= 0 ? new Event(tag, timestamp, nanos, record.copy())
+                    : new Event(tag, timestamp, record.copy());
+        }
+        return nanos >= 0 ? new Event(tag, timestamp, nanos, data) : new Event(tag, timestamp, data);
+    }
+
+    private void drain() {
+        long pollIntervalNanos = TimeUnit.MILLISECONDS.toNanos(POLL_INTERVAL_MILLIS);
+        // once the ring is closed, nothing is claimed anymore, so this drains every event emitted
+        while (!ring.isClosed() || !ring.isEmpty()) {
+            int count = ring.available(MAX_BATCH_SIZE);
+            if (count == 0) {
+                ring.await(pollIntervalNanos);
+                // keep draining until closed
+                Thread.interrupted();
+                continue;
+            }
+            long first = ring.first();
+            try {
+                int last = count - 1;
+                for (int i = 0; i <= last; i++) {
+                    Event event = ring.slot(first + i);
+                    try {
+                        sender.emit(event, i == last);
+                    } catch (RuntimeException e) {
+                        // drop only this event, and still write the rest of the batch
+                        LOG.error("Failed to send an event with tag " + event.tag, e);
+                        sender.getMetrics().eventDropped();
+                        if (i == last) {
+                            sender.flush();
+                        }
+                    }
+                }
+            } catch (RuntimeException e) {
+                LOG.error("Failed to send events", e);
+            } finally {
+                ring.release(count);
+                drainLock.lock();
+                try {
+                    drainedCondition.signalAll();
+                } finally {
+                    drainLock.unlock();
+                }
+            }
+        }
+    }
+
+    /**
+     * Waits until every event emitted so far has been handed to the underlying sender, then flushes it.
+     */
+    @Override
+    public void flush() {
+        long target = ring.claimed();
+        drainLock.lock();
+        try {
+            while (ring.first() < target && ioThread.isAlive()) {
+                try {
+                    drainedCondition.await(POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        } finally {
+            drainLock.unlock();
+        }
+        sender.flush();
+    }
+
+    /**
+     * Stops accepting events, waits for the I/O thread to write the queued ones and closes the connection.
+     */
+    @Override
+    public void close() {
+        if (!ring.close()) {
+            return;
+        }
+        try {
+            // keep waiting as long as the I/O thread makes progress
+            int remaining;
+            do {
+                remaining = ring.size();
+                ioThread.join(timeout);
+            } while (ioThread.isAlive() && ring.size() < remaining);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (ioThread.isAlive()) {
+            LOG.error("Closing {} with {} events left in the queue", name, ring.size());
+        } else {
+            sender.flush();
+        }
+        sender.close();
+    }
+
+    /**
+     * Returns the metrics of the underlying sender, which also count the events dropped from the queue.
+     */
+    public SenderMetrics getMetrics() {
+        return sender.getMetrics();
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public String toString() {
+        return getName();
+    }
+
+    @Override
+    public boolean isConnected() {
+        return sender.isConnected();
+    }
+
+    @Override
+    public void setErrorHandler(ErrorHandler errorHandler) {
+        if (errorHandler == null) {
+            throw new IllegalArgumentException("errorHandler is null");
+        }
+
+        this.errorHandler = errorHandler;
+        sender.setErrorHandler(errorHandler);
+    }
+
+    @Override
+    public void removeErrorHandler() {
+        this.errorHandler = DEFAULT_ERROR_HANDLER;
+        sender.removeErrorHandler();
+    }
+}
@@ -0,0 +1,29 @@
+//
+// A Structured Logger for Fluent
+//
+// Copyright (C) 2011 - 2013 Muga Nishizawa
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//
+package org.fluentd.logger.sender;
+
+/**
+ * How {@link MultiEndpointSender} picks the endpoint for the next event among the healthy ones.
+ */
+public enum BalancingPolicy {
+    /** Takes turns in proportion to the endpoints' weights. */
+    ROUND_ROBIN,
+
+    /** Picks the endpoint with the fewest buffered bytes relative to its weight. */
+    LEAST_IN_FLIGHT
+}
@@ -0,0 +1,136 @@
+//
+// A Structured Logger for Fluent
+//
+// Copyright (C) 2011 - 2013 Muga Nishizawa
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//
+package org.fluentd.logger.sender;
+
+import org.msgpack.MessagePack;
+import org.msgpack.MessageTypeException;
+import org.msgpack.io.ByteBufferOutput;
+import org.msgpack.packer.MessagePackPacker;
+
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+/**
+ * Packs values straight into a fixed buffer, from its position on. A value which doesn't fit is rolled
+ * back, so the buffer only ever holds complete values.
+ */
+class ByteBufferPacker extends MessagePackPacker {
+
+    private final ByteBuffer buffer;
+
+    /** The msgpack encodings of recent tags, which are copied into the buffer as they are. */
+    final TagCache<byte[]> tags;
+
+    ByteBufferPacker(MessagePack msgpack, ByteBuffer buffer) {
+        this(msgpack, buffer, new TagCache<byte[]>() {
+            @Override
+            protected byte[] compute(String tag) {
+                return EncodedRecord.encode(tag);
+            }
+        });
+    }
+
+    /**
+     * Creates a packer sharing the tag encodings of another one, for when the buffer is replaced.
+     */
+    ByteBufferPacker(MessagePack msgpack, ByteBuffer buffer, TagCache<byte[]> tags) {
+        super(msgpack, new ByteBufferOutput(buffer));
+        this.buffer = buffer;
+        this.tags = tags;
+    }
+
+    /**
+     * Packs the event as <code>[tag, time, record]</code>, or as a <code>[time, record]</code> entry if
+     * <code>entry</code> is true. Returns false, leaving the buffer as it was, if the buffer has no room
+     * for it.
+     */
+    boolean pack(Event event, boolean entry) throws IOException {
+        int start = buffer.position();
+        boolean packed = false;
+        try {
+            packEvent(event, entry);
+            packed = true;
+        } catch (BufferOverflowException e) {
+            // rolled back below
+        } finally {
+            if (!packed) {
+                buffer.position(start);
+                reset();
+            }
+        }
+        return packed;
+    }
+
+    /**
+     * Writes the array header and the time directly, as the packer can't write an EventTime inside an
+     * array it tracks. An {@link EncodedRecord} is copied as it is.
+     */
+    private void packEvent(Event event, boolean entry) throws IOException {
+        if (entry) {
+            out.writeByte((byte) 0x92);
+        } else {
+            out.writeByte((byte) 0x93);
+            if (event.tag == null) {
+                // as the packer writes a null string
+                out.writeByte((byte) 0xc0);
+            } else {
+                byte[] tag = tags.get(event.tag);
+                out.write(tag, 0, tag.length);
+            }
+        }
+        if (event.eventTime) {
+            // fixext 8 of type 0: seconds and nanoseconds as big-endian 32-bit integers
+            out.writeByteAndByte((byte) 0xd7, (byte) 0x00);
+            out.writeInt((int) event.timestamp);
+            out.writeInt(event.nanos);
+        } else {
+            write(event.timestamp);
+        }
+        if (event.record != null) {
+            event.record.writeTo(out);
+        } else {
+            packRecord(event.data);
+        }
+    }
+
+    /**
+     * Packs a map record like {@link Event.EventTemplate} does, with the keys copied from
+     * {@link EncodedRecord#KEYS}. A value of an unknown type is written as its <code>toString()</code>.
+     */
+    private void packRecord(Map<String, Object> data) throws IOException {
+        EncodedRecord.writeMapHeader(out, data.size());
+        for (Map.Entry<String, Object> entry : data.entrySet()) {
+            if (entry.getKey() == null) {
+                out.writeByte((byte) 0xc0);
+            } else {
+                byte[] key = EncodedRecord.KEYS.get(entry.getKey());
+                out.write(key, 0, key.length);
+            }
+            int start = buffer.position();
+            try {
+                write(entry.getValue());
+            } catch (MessageTypeException e) {
+                buffer.position(start);
+                reset();
+                write(entry.getValue().toString());
+            }
+        }
+    }
+}
@@ -0,0 +1,306 @@
+//
+// A Structured Logger for Fluent
+//
+// Copyright (C) 2011 - 2013 Muga Nishizawa
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//
+package org.fluentd.logger.sender;
+
+import org.fluentd.logger.errorhandler.ErrorHandler;
+import org.fluentd.logger.metrics.SenderMetrics;
+import org.msgpack.MessagePack;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Sends events as UDP datagrams to a forwarder, for telemetry which may be lost but must never slow the
+ * application down. Events are serialized like in the Message mode of the forward protocol, and as many
+ * as fit are sent together, so a datagram holds one or more <code>[tag, time, record]</code> arrays back
+ * to back and never exceeds <code>maxDatagramSize</code> bytes. A datagram is sent once the next event
+ * doesn't fit, on {@link #flush()}, and by a background flush every <code>maxDelayMillis</code>.
+ * Sending doesn't wait for anything: a datagram the socket can't take, or an event larger than a datagram,
+ * is dropped and counted in {@link #getMetrics()}.
+ */
+public class DatagramSender implements RecordSender {
+
+    private static final Logger LOG = LoggerFactory.getLogger(DatagramSender.class);
+
+    private static final ErrorHandler DEFAULT_ERROR_HANDLER = new ErrorHandler() {};
+
+    /** The payload of an unfragmented IPv4 datagram on Ethernet. */
+    public static final int DEFAULT_MAX_DATAGRAM_SIZE = 1472;
+
+    public static final long DEFAULT_MAX_DELAY_MILLIS = 10;
+
+    private final InetSocketAddress address;
+
+    private final ByteBuffer buffer;
+
+    private final ByteBufferPacker packer;
+
+    private final String name;
+
+    private final SenderMetrics metrics;
+
+    // not the monitor, so that sending a datagram doesn't pin virtual threads
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private DatagramChannel channel;
+
+    // events in the buffer
+    private int bufferedEvents;
+
+    private ScheduledFuture<?> flushTask;
+
+    private boolean closed;
+
+    private ErrorHandler errorHandler = DEFAULT_ERROR_HANDLER;
+
+    public DatagramSender(String host, int port) {
+        this(host, port, DEFAULT_MAX_DATAGRAM_SIZE, DEFAULT_MAX_DELAY_MILLIS);
+    }
+
+    /**
+     * @param maxDatagramSize the largest datagram to send, e.g. the path MTU less the IP and UDP headers
+     * @param maxDelayMillis how long an event may wait for more to fill its datagram, 0 to wait for
+     *                       {@link #flush()} or a full datagram
+     */
+    public DatagramSender(String host, int port, int maxDatagramSize, long maxDelayMillis) {
+        if (maxDatagramSize <= 0 || maxDatagramSize > 65507) {
+            throw new IllegalArgumentException("Invalid maxDatagramSize: " + maxDatagramSize);
+        }
+        if (maxDelayMillis < 0) {
+            throw new IllegalArgumentException("maxDelayMillis must not be negative: " + maxDelayMillis);
+        }
+        MessagePack msgpack = new MessagePack();
+        msgpack.register(Event.class, Event.EventTemplate.INSTANCE);
+        address = new InetSocketAddress(host, port);
+        buffer = ByteBuffer.allocate(maxDatagramSize);
+        packer = new ByteBufferPacker(msgpack, buffer);
+        name = String.format("udp_%s_%d", host, port);
+        metrics = new SenderMetrics(maxDatagramSize);
+        metrics.register(name);
+        if (maxDelayMillis > 0) {
+            flushTask = FlushScheduler.schedule(new ScheduledFlush(this), maxDelayMillis);
+        }
+    }
+
+    // static, so that it doesn't keep the sender alive
+    private static final class ScheduledFlush extends FlushScheduler.Task<DatagramSender> {
+
+        ScheduledFlush(DatagramSender sender) {
+            super(sender);
+        }
+
+        @Override
+        void run(DatagramSender sender) {
+            sender.flush();
+        }
+    }
+
+    @Override
+    public boolean emit(String tag, Map<String, Object> data) {
+        return emit(tag, System.currentTimeMillis() / 1000, data);
+    }
+
+    @Override
+    public boolean emit(String tag, long timestamp, Map<String, Object> data) {
+        return emit(new Event(tag, timestamp, data));
+    }
+
+    @Override
+    public boolean emit(String tag, long timestamp, EncodedRecord record) {
+        return emit(new Event(tag, timestamp, record));
+    }
+
+    @Override
+    public boolean emit(String tag, long timestamp, int nanos, Map<String, Object> data) {
+        return emit(new Event(tag, timestamp, nanos, data));
+    }
+
+    @Override
+    public boolean emit(String tag, long timestamp, int nanos, EncodedRecord record) {
+        return emit(new Event(tag, timestamp, nanos, record));
+    }
+
+    protected boolean emit(Event event) {
+        lock.lock();
+        try {
+            if (closed) {
+                LOG.error("Cannot emit {}: sender is already closed", event);
+                metrics.eventDropped();
+                return false;
+            }
+            try {
+                if (!packer.pack(event, false)) {
+                    send();
+                    if (!packer.pack(event, false)) {
+                        LOG.debug("Dropped {}: larger than a datagram", event);
+                        metrics.eventDropped();
+                        return false;
+                    }
+                }
+            } catch (IOException e) {
+                LOG.error("Cannot serialize event: " + event, e);
+                metrics.eventDropped();
+                return false;
+            }
+            bufferedEvents++;
+            metrics.eventEmitted();
+            metrics.pendingBytes(buffer.position());
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sends the buffered events as one datagram, or drops them if the socket can't take it.
+     */
+    private void send() {
+        if (bufferedEvents == 0) {
+            return;
+        }
+        long start = System.nanoTime();
+        buffer.flip();
+        try {
+            if (channel == null) {
+                channel = DatagramChannel.open();
+                channel.configureBlocking(false);
+                channel.connect(address);
+            }
+            int sent = channel.write(buffer);
+            if (sent > 0) {
+                metrics.bytesSent(sent);
+                metrics.flushed(System.nanoTime() - start);
+            } else {
+                metrics.eventsDropped(bufferedEvents);
+            }
+        } catch (IOException e) {
+            // e.g. nothing listening on the port
+            try {
+                errorHandler.handleNetworkError(e);
+            } catch (Exception handlerException) {
+                LOG.warn("ErrorHandler.handleNetworkError failed", handlerException);
+            }
+            LOG.debug("Failed to send a datagram to {}", address, e);
+            metrics.flushFailed(System.currentTimeMillis());
+            metrics.eventsDropped(bufferedEvents);
+            closeChannel();
+        } finally {
+            buffer.clear();
+            bufferedEvents = 0;
+            metrics.pendingBytes(0);
+        }
+    }
+
+    private void closeChannel() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) { // ignore
+            } finally {
+                channel = null;
+            }
+        }
+    }
+
+    @Override
+    public void flush() {
+        lock.lock();
+        try {
+            send();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            if (flushTask != null) {
+                flushTask.cancel(false);
+                flushTask = null;
+            }
+            send();
+            closeChannel();
+            closed = true;
+            metrics.unregister();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public String toString() {
+        return getName();
+    }
+
+    /**
+     * Datagrams need no connection, so this is true until the sender is closed.
+     */
+    @Override
+    public boolean isConnected() {
+        lock.lock();
+        try {
+            return !closed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void setErrorHandler(ErrorHandler errorHandler) {
+        if (errorHandler == null) {
+            throw new IllegalArgumentException("errorHandler is null");
+        }
+        lock.lock();
+        try {
+            this.errorHandler = errorHandler;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void removeErrorHandler() {
+        lock.lock();
+        try {
+            this.errorHandler = DEFAULT_ERROR_HANDLER;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public SenderMetrics getMetrics() {
+        return metrics;
+    }
+}
@@ -0,0 +1,128 @@
+//
+// A Structured Logger for Fluent
+//
+// Copyright (C) 2011 - 2013 Muga Nishizawa
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//
+package org.fluentd.logger.sender;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Direct buffers for the pending buffers of senders, shared between them. Buffers are kept in power-of-two
+ * sizes from {@link #MIN_SEGMENT_SIZE} on, so that a buffer one sender gave back after a burst serves the
+ * next burst of another. Up to <code>maxPooledBytes</code> are kept; buffers beyond that, and buffers of
+ * other sizes, are left to the garbage collector.
+ *
+ * @see RawSocketSender#setBufferPool(DirectBufferPool)
+ */
+public class DirectBufferPool {
+
+    public static final int MIN_SEGMENT_SIZE = 64 * 1024;
+
+    public static final long DEFAULT_MAX_POOLED_BYTES = 64L * 1024 * 1024;
+
+    private static final DirectBufferPool SHARED = new DirectBufferPool(DEFAULT_MAX_POOLED_BYTES);
+
+    private static final int MIN_SHIFT = Integer.numberOfTrailingZeros(MIN_SEGMENT_SIZE);
+
+    // the free buffers of each size, from MIN_SEGMENT_SIZE to 1 GB
+    private final Queue<ByteBuffer>[] free;
+
+    private final long maxPooledBytes;
+
+    private final AtomicLong pooledBytes = new AtomicLong();
+
+    /**
+     * Returns the pool shared by the senders of the process.
+     */
+    public static DirectBufferPool shared() {
+        return SHARED;
+    }
+
+    @SuppressWarnings("unchecked")
+    public DirectBufferPool(long maxPooledBytes) {
+        if (maxPooledBytes < 0) {
+            throw new IllegalArgumentException("maxPooledBytes must not be negative: " + maxPooledBytes);
+        }
+        this.maxPooledBytes = maxPooledBytes;
+        free = new Queue[31 - MIN_SHIFT];
+        for (int i = 0; i < free.length; i++) {
+            free[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+        }
+    }
+
+    /**
+     * Returns an empty direct buffer of exactly <code>capacity</code> bytes.
+     */
+    ByteBuffer acquire(int capacity) {
+        int index = indexOf(capacity);
+        if (index >= 0) {
+            ByteBuffer buffer = free[index].poll();
+            if (buffer != null) {
+                pooledBytes.addAndGet(-capacity);
+                return buffer;
+            }
+        }
+        return ByteBuffer.allocateDirect(capacity);
+    }
+
+    /**
+     * Takes back a buffer of {@link #acquire(int)}, which the caller must not use anymore.
+     */
+    void release(ByteBuffer buffer) {
+        int capacity = buffer.capacity();
+        int index = indexOf(capacity);
+        if (index < 0 || !buffer.isDirect()) {
+            return;
+        }
+        if (pooledBytes.addAndGet(capacity) > maxPooledBytes) {
+            pooledBytes.addAndGet(-capacity);
+            return;
+        }
+        buffer.clear();
+        free[index].offer(buffer);
+    }
+
+    /**
+     * Returns the number of bytes of the free buffers in the pool.
+     */
+    public long getPooledBytes() {
+        return pooledBytes.get();
+    }
+
+    /**
+     * Returns the size a buffer of <code>capacity</code> bytes or more grows to, up to <code>max</code>.
+     */
+    static int segmentSize(int capacity, int max) {
+        if (capacity >= max) {
+            return max;
+        }
+        int size = Math.max(Integer.highestOneBit(capacity), MIN_SEGMENT_SIZE);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        return Math.min(size, max);
+    }
+
+    private int indexOf(int capacity) {
+        if (capacity < MIN_SEGMENT_SIZE || Integer.bitCount(capacity) != 1) {
+            return -1;
+        }
+        return Integer.numberOfTrailingZeros(capacity) - MIN_SHIFT;
+    }
+}
@@ -0,0 +1,355 @@
+//
+// A Structured Logger for Fluent
+//
+// Copyright (C) 2011 - 2013 Muga Nishizawa
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//
+package org.fluentd.logger.sender;
+
+import org.msgpack.MessagePack;
+import org.msgpack.MessageTypeException;
+import org.msgpack.io.ByteBufferOutput;
+import org.msgpack.io.Output;
+import org.msgpack.packer.MessagePackPacker;
+import org.msgpack.type.Value;
+import org.msgpack.unpacker.BufferUnpacker;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A record whose fields are encoded to msgpack as they're put. Primitives and ASCII strings are written
+ * straight into a reusable buffer, without boxing them or building a map; other values go through
+ * msgpack's templates. An instance is meant to be reused with {@link #clear()} by one thread at a time.
+ */
+public class EncodedRecord {
+
+    private static final MessagePack MSGPACK = new MessagePack();
+
+    /**
+     * The msgpack encodings of recent record keys. Records use the same few field names over and over, so
+     * keys are copied from here rather than encoded each time.
+     */
+    static final TagCache<byte[]> KEYS = new TagCache<byte[]>(1024) {
+        @Override
+        protected byte[] compute(String key) {
+            return encode(key);
+        }
+    };
+
+    private ByteBuffer buffer;
+
+    private int size;
+
+    /** Packs the values of {@link #put(String, Object)}; it's recreated whenever the buffer is replaced. */
+    private MessagePackPacker packer;
+
+    public EncodedRecord() {
+        this(256);
+    }
+
+    public EncodedRecord(int initialCapacity) {
+        buffer = ByteBuffer.allocate(initialCapacity);
+    }
+
+    public EncodedRecord put(String key, long value) {
+        writeKey(key);
+        writeLong(value);
+        size++;
+        return this;
+    }
+
+    public EncodedRecord put(String key, double value) {
+        writeKey(key);
+        reserve(9);
+        buffer.put((byte) 0xcb);
+        buffer.putDouble(value);
+        size++;
+        return this;
+    }
+
+    public EncodedRecord put(String key, boolean value) {
+        writeKey(key);
+        reserve(1);
+        buffer.put((byte) (value ? 0xc3 : 0xc2));
+        size++;
+        return this;
+    }
+
+    public EncodedRecord put(String key, String value) {
+        writeKey(key);
+        if (value == null) {
+            reserve(1);
+            buffer.put((byte) 0xc0);
+        } else {
+            writeString(value);
+        }
+        size++;
+        return this;
+    }
+
+    /**
+     * Puts a value of any type msgpack can serialize. Like {@link Event.EventTemplate}, a value of an
+     * unknown type is written as its <code>toString()</code>.
+     */
+    public EncodedRecord put(String key, Object value) {
+        writeKey(key);
+        int start = buffer.position();
+        try {
+            packer().write(value);
+        } catch (MessageTypeException e) {
+            buffer.position(start);
+            packer.reset();
+            writeString(value.toString());
+        } catch (IOException e) {
+            // the output is in memory
+            throw new IllegalStateException(e);
+        }
+        size++;
+        return this;
+    }
+
+    /**
+     * Returns the number of fields.
+     */
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        buffer.clear();
+        size = 0;
+    }
+
+    /**
+     * Returns a copy which doesn't share the buffer, for handing the record over to another thread.
+     */
+    public EncodedRecord copy() {
+        EncodedRecord copy = new EncodedRecord(Math.max(buffer.position(), 1));
+        copy.buffer.put(buffer.array(), 0, buffer.position());
+        copy.size = size;
+        return copy;
+    }
+
+    /**
+     * Replaces the fields with those of <code>other</code>, reusing the buffer.
+     */
+    void copyFrom(EncodedRecord other) {
+        buffer.clear();
+        reserve(other.buffer.position());
+        buffer.put(other.buffer.array(), 0, other.buffer.position());
+        size = other.size;
+    }
+
+    /**
+     * Writes the record as a msgpack map.
+     */
+    void writeTo(Output out) throws IOException {
+        writeMapHeader(out, size);
+        out.write(buffer.array(), 0, buffer.position());
+    }
+
+    static void writeMapHeader(Output out, int size) throws IOException {
+        if (size < 16) {
+            out.writeByte((byte) (0x80 | size));
+        } else if (size < 65536) {
+            out.writeByteAndShort((byte) 0xde, (short) size);
+        } else {
+            out.writeByteAndInt((byte) 0xdf, size);
+        }
+    }
+
+    /**
+     * Decodes the record into a map, for senders which only take maps.
+     */
+    public Map<String, Object> toMap() {
+        BufferUnpacker u = MSGPACK.createBufferUnpacker();
+        u.wrap(buffer.array(), 0, buffer.position());
+        Map<String, Object> map = new HashMap<String, Object>(size * 2);
+        try {
+            for (int i = 0; i < size; i++) {
+                map.put((String) toObject(u.readValue()), toObject(u.readValue()));
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return map;
+    }
+
+    private static Object toObject(Value v) {
+        if (v.isNilValue()) {
+            return null;
+        } else if (v.isRawValue()) {
+            return v.asRawValue().getString();
+        } else if (v.isBooleanValue()) {
+            return v.asBooleanValue().getBoolean();
+        } else if (v.isFloatValue()) {
+            return v.asFloatValue().getDouble();
+        } else if (v.isIntegerValue()) {
+            return v.asIntegerValue().getLong();
+        } else if (v.isArrayValue()) {
+            List<Object> list = new ArrayList<Object>();
+            for (Value e : v.asArrayValue()) {
+                list.add(toObject(e));
+            }
+            return list;
+        } else {
+            Map<Object, Object> map = new HashMap<Object, Object>();
+            for (Map.Entry<Value, Value> e : v.asMapValue().entrySet()) {
+                map.put(toObject(e.getKey()), toObject(e.getValue()));
+            }
+            return map;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return toMap().toString();
+    }
+
+    private MessagePackPacker packer() {
+        if (packer == null) {
+            Output out = new ByteBufferOutput(buffer, new ByteBufferOutput.ExpandBufferCallback() {
+                public ByteBuffer call(ByteBuffer buffer, int len) throws IOException {
+                    grow(len);
+                    return EncodedRecord.this.buffer;
+                }
+            });
+            packer = new MessagePackPacker(MSGPACK, out) {};
+        }
+        return packer;
+    }
+
+    private void reserve(int len) {
+        if (buffer.remaining() < len) {
+            grow(len);
+            packer = null;
+        }
+    }
+
+    private void grow(int len) {
+        ByteBuffer grown = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + len));
+        buffer.flip();
+        grown.put(buffer);
+        buffer = grown;
+    }
+
+    private void writeLong(long v) {
+        reserve(9);
+        if (v < -(1L << 5)) {
+            if (v < -(1L << 15)) {
+                if (v < -(1L << 31)) {
+                    buffer.put((byte) 0xd3);
+                    buffer.putLong(v);
+                } else {
+                    buffer.put((byte) 0xd2);
+                    buffer.putInt((int) v);
+                }
+            } else if (v < -(1 << 7)) {
+                buffer.put((byte) 0xd1);
+                buffer.putShort((short) v);
+            } else {
+                buffer.put((byte) 0xd0);
+                buffer.put((byte) v);
+            }
+        } else if (v < (1 << 7)) {
+            // fixnum
+            buffer.put((byte) v);
+        } else if (v < (1L << 16)) {
+            if (v < (1 << 8)) {
+                buffer.put((byte) 0xcc);
+                buffer.put((byte) v);
+            } else {
+                buffer.put((byte) 0xcd);
+                buffer.putShort((short) v);
+            }
+        } else if (v < (1L << 32)) {
+            buffer.put((byte) 0xce);
+            buffer.putInt((int) v);
+        } else {
+            buffer.put((byte) 0xcf);
+            buffer.putLong(v);
+        }
+    }
+
+    private void writeKey(String key) {
+        if (key == null) {
+            reserve(1);
+            buffer.put((byte) 0xc0);
+            return;
+        }
+        byte[] encoded = KEYS.get(key);
+        reserve(encoded.length);
+        buffer.put(encoded);
+    }
+
+    private void writeString(String s) {
+        int len = s.length();
+        for (int i = 0; i < len; i++) {
+            if (s.charAt(i) >= 0x80) {
+                writeRaw(utf8(s));
+                return;
+            }
+        }
+        // ASCII is its own UTF-8 encoding
+        reserve(5 + len);
+        writeRawHeader(buffer, len);
+        for (int i = 0; i < len; i++) {
+            buffer.put((byte) s.charAt(i));
+        }
+    }
+
+    private void writeRaw(byte[] bytes) {
+        reserve(5 + bytes.length);
+        writeRawHeader(buffer, bytes.length);
+        buffer.put(bytes);
+    }
+
+    /**
+     * Returns the msgpack encoding of the string, as a raw value of its UTF-8 bytes.
+     */
+    static byte[] encode(String s) {
+        byte[] bytes = utf8(s);
+        ByteBuffer encoded = ByteBuffer.allocate(5 + bytes.length);
+        writeRawHeader(encoded, bytes.length);
+        encoded.put(bytes);
+        return Arrays.copyOf(encoded.array(), encoded.position());
+    }
+
+    private static void writeRawHeader(ByteBuffer buffer, int len) {
+        if (len < 32) {
+            buffer.put((byte) (0xa0 | len));
+        } else if (len < 65536) {
+            buffer.put((byte) 0xda);
+            buffer.putShort((short) len);
+        } else {
+            buffer.put((byte) 0xdb);
+            buffer.putInt(len);
+        }
+    }
+
+    private static byte[] utf8(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -31,8 +31,20 @@ public class Event {
 
     public long timestamp;
 
+    /** The nanoseconds within the second of {@link #timestamp}, if {@link #eventTime} is set. */
+    public int nanos;
+
+    /**
+     * Whether the time is sent as an EventTime of the forward protocol, with nanoseconds, rather than as
+     * an integer of seconds. fluentd reads EventTime since v0.14.
+     */
+    public boolean eventTime;
+
     public Map<String, Object> data;
 
+    /** The record, if it was built as an {@link EncodedRecord} rather than a map. */
+    EncodedRecord record;
+
     public Event() {
     }
 
@@ -46,12 +58,61 @@ public class Event {
         this.data = data;
     }
 
+    /**
+     * Creates an event with an EventTime of <code>timestamp</code> seconds and <code>nanos</code>
+     * nanoseconds.
+     */
+    public Event(String tag, long timestamp, int nanos, Map<String, Object> data) {
+        this(tag, timestamp, data);
+        setEventTime(nanos);
+    }
+
+    Event(String tag, long timestamp, EncodedRecord record) {
+        this.tag = tag;
+        this.timestamp = timestamp;
+        this.record = record;
+    }
+
+    Event(String tag, long timestamp, int nanos, EncodedRecord record) {
+        this(tag, timestamp, record);
+        setEventTime(nanos);
+    }
+
+    private void setEventTime(int nanos) {
+        checkNanos(nanos);
+        this.nanos = nanos;
+        eventTime = true;
+    }
+
+    /**
+     * Returns a copy which doesn't share the record, for handing the event out when this one may be reused.
+     */
+    Event copy() {
+        Event copy = new Event(tag, timestamp, data);
+        copy.nanos = nanos;
+        copy.eventTime = eventTime;
+        copy.record = record != null ? record.copy() : null;
+        return copy;
+    }
+
+    static void checkNanos(int nanos) {
+        if (nanos < 0 || nanos > 999999999) {
+            throw new IllegalArgumentException("nanos out of range: " + nanos);
+        }
+    }
+
     @Override
     public String toString() {
-        return String.format("Event{tag=%s,timestamp=%d,data=%s}",
-                tag, timestamp, data.toString());
+        String time = eventTime ? String.format("%d.%09d", timestamp, nanos) : String.valueOf(timestamp);
+        return String.format("Event{tag=%s,timestamp=%s,data=%s}",
+                tag, time, data != null ? data.toString() : record.toString());
     }
 
+    /**
+     * Writes events with any msgpack {@link Packer}. msgpack-java 0.6 has no ext types, so this writes an
+     * EventTime as integer seconds; {@link ByteBufferPacker}, which {@link RawSocketSender} serializes
+     * with, writes it in full.
+     */
     public static class EventTemplate extends AbstractTemplate<Event> {
         public static EventTemplate INSTANCE = new EventTemplate();
 
@@ -68,21 +129,43 @@ public class Event {
             {
                 Templates.TString.write(pk, v.tag, required);
                 Templates.TLong.write(pk, v.timestamp, required);
-                pk.writeMapBegin(v.data.size());
-                {
-                    for (Map.Entry<String, Object> entry : v.data.entrySet()) {
-                        Templates.TString.write(pk, entry.getKey(), required);
-                        try {
-                            pk.write(entry.getValue());
-                        } catch (MessageTypeException e) {
-                            String val = entry.getValue().toString();
-                            Templates.TString.write(pk, val, required);
-                        }
+                writeRecord(pk, v, required);
+            }
+            pk.writeArrayEnd();
+        }
+
+        /**
+         * Writes the event without its tag, as a <code>[time, record]</code> entry of the Forward and
+         * PackedForward modes of the forward protocol.
+         */
+        public void writeEntry(Packer pk, Event v, boolean required) throws IOException {
+            pk.writeArrayBegin(2);
+            {
+                Templates.TLong.write(pk, v.timestamp, required);
+                writeRecord(pk, v, required);
+            }
+            pk.writeArrayEnd();
+        }
+
+        private void writeRecord(Packer pk, Event v, boolean required) throws IOException {
+            if (v.record != null) {
+                // ByteBufferPacker copies the encoded record as it is; other packers get it decoded
+                pk.write(v.record.toMap());
+                return;
+            }
+            pk.writeMapBegin(v.data.size());
+            {
+                for (Map.Entry<String, Object> entry : v.data.entrySet()) {
+                    Templates.TString.write(pk, entry.getKey(), required);
+                    try {
+                        pk.write(entry.getValue());
+                    } catch (MessageTypeException e) {
+                        String val = entry.getValue().toString();
+                        Templates.TString.write(pk, val, required);
                     }
                 }
-                pk.writeMapEnd();
             }
-            pk.writeArrayEnd();
+            pk.writeMapEnd();
         }
 
         public Event read(Unpacker u, Event to, boolean required) throws IOException {
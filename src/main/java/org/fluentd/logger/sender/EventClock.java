@@ -0,0 +1,93 @@
+//
+// A Structured Logger for Fluent
+//
+// Copyright (C) 2011 - 2013 Muga Nishizawa
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//
+package org.fluentd.logger.sender;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The current time in nanoseconds since the epoch, for EventTime timestamps. It's extrapolated from an
+ * anchor with {@link System#nanoTime()}, so it has sub-millisecond resolution on Java 6 and allocates
+ * nothing, and it's re-anchored to {@link System#currentTimeMillis()} whenever the two drift apart by
+ * more than {@link #MAX_DRIFT_MILLIS}, e.g. after the wall clock was adjusted; the threshold is well
+ * above the granularity of the wall clock, which is as coarse as 10-16 ms on some systems. A time is
+ * never earlier than one returned before, so events keep their order even when the wall clock is set
+ * back; the time then holds still until the wall clock catches up.
+ */
+public final class EventClock {
+
+    private static final long NANOS_PER_MILLI = 1000L * 1000L;
+
+    private static final long NANOS_PER_SECOND = 1000L * NANOS_PER_MILLI;
+
+    static final long MAX_DRIFT_MILLIS = 100;
+
+    private static volatile Anchor anchor = new Anchor(System.currentTimeMillis(), System.nanoTime());
+
+    // the latest time returned
+    private static final AtomicLong last = new AtomicLong();
+
+    private EventClock() {
+    }
+
+    private static final class Anchor {
+        final long epochNanos;
+
+        final long nanoTime;
+
+        Anchor(long epochMillis, long nanoTime) {
+            this.epochNanos = epochMillis * NANOS_PER_MILLI;
+            this.nanoTime = nanoTime;
+        }
+    }
+
+    public static long currentTimeNanos() {
+        long nanoTime = System.nanoTime();
+        long millis = System.currentTimeMillis();
+        Anchor a = anchor;
+        long nanos = a.epochNanos + (nanoTime - a.nanoTime);
+        long drift = nanos / NANOS_PER_MILLI - millis;
+        if (drift > MAX_DRIFT_MILLIS || drift < -MAX_DRIFT_MILLIS) {
+            a = new Anchor(millis, nanoTime);
+            anchor = a;
+            nanos = a.epochNanos;
+        }
+        while (true) {
+            long prev = last.get();
+            if (nanos <= prev) {
+                return prev;
+            }
+            if (last.compareAndSet(prev, nanos)) {
+                return nanos;
+            }
+        }
+    }
+
+    /**
+     * Returns the seconds of a time returned by {@link #currentTimeNanos()}.
+     */
+    public static long seconds(long epochNanos) {
+        return epochNanos / NANOS_PER_SECOND;
+    }
+
+    /**
+     * Returns the nanoseconds within the second of a time returned by {@link #currentTimeNanos()}.
+     */
+    public static int nanos(long epochNanos) {
+        return (int) (epochNanos % NANOS_PER_SECOND);
+    }
+}
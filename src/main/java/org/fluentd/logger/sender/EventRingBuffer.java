@@ -0,0 +1,210 @@
+//
+// A Structured Logger for Fluent
+//
+// Copyright (C) 2011 - 2013 Muga Nishizawa
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//
+package org.fluentd.logger.sender;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded ring of preallocated event slots, handing events from any number of producer threads to one
+ * consumer thread without allocating. A producer claims the next sequence with a compare-and-set, fills
+ * the slot's {@link Event} in place and publishes it; the consumer takes runs of consecutive published
+ * slots and releases them once it's done with them, after which producers reuse them.
+ */
+class EventRingBuffer {
+
+    // set in the next sequence once the ring is closed
+    private static final long CLOSED = Long.MIN_VALUE;
+
+    private final Event[] slots;
+
+    // the records copied into slots, allocated on first use
+    private final EncodedRecord[] records;
+
+    // the sequence last published in each slot
+    private final AtomicLongArray published;
+
+    private final int mask;
+
+    // the next sequence to claim, with CLOSED set once nothing may be claimed anymore
+    private final AtomicLong next = new AtomicLong();
+
+    // the next sequence to consume; producers may claim up to a capacity ahead of it
+    private final AtomicLong consumed = new AtomicLong();
+
+    private volatile Thread consumer;
+
+    private volatile boolean consumerWaiting;
+
+    /**
+     * @param capacity the number of slots, rounded up to a power of two
+     */
+    EventRingBuffer(int capacity) {
+        if (capacity <= 0 || capacity > (1 << 30)) {
+            throw new IllegalArgumentException("Invalid capacity: " + capacity);
+        }
+        int n = Integer.highestOneBit(capacity);
+        if (n < capacity) {
+            n <<= 1;
+        }
+        slots = new Event[n];
+        records = new EncodedRecord[n];
+        published = new AtomicLongArray(n);
+        for (int i = 0; i < n; i++) {
+            slots[i] = new Event();
+            published.set(i, -1);
+        }
+        mask = n - 1;
+    }
+
+    int capacity() {
+        return slots.length;
+    }
+
+    /**
+     * Claims the next slot, and returns its sequence or -1 if the ring is full or closed. The caller must
+     * fill {@link #slot(long)} and {@link #publish(long)} it.
+     */
+    long tryClaim() {
+        while (true) {
+            long sequence = next.get();
+            if (sequence < 0 || sequence - consumed.get() >= slots.length) {
+                return -1;
+            }
+            if (next.compareAndSet(sequence, sequence + 1)) {
+                return sequence;
+            }
+        }
+    }
+
+    Event slot(long sequence) {
+        return slots[(int) sequence & mask];
+    }
+
+    /**
+     * Returns the slot's own record to copy a record into, so that the caller may reuse theirs.
+     */
+    EncodedRecord record(long sequence) {
+        int index = (int) sequence & mask;
+        EncodedRecord record = records[index];
+        if (record == null) {
+            record = new EncodedRecord();
+            records[index] = record;
+        }
+        return record;
+    }
+
+    void publish(long sequence) {
+        // a volatile write, so that it can't be reordered with reading consumerWaiting
+        published.set((int) sequence & mask, sequence);
+        if (consumerWaiting) {
+            LockSupport.unpark(consumer);
+        }
+    }
+
+    /**
+     * Stops producers from claiming slots, and returns false if the ring was already closed. The slots
+     * claimed before are still published and consumed as usual, so once the consumer finds the ring
+     * closed and empty, it has seen every event a producer could claim.
+     */
+    boolean close() {
+        while (true) {
+            long sequence = next.get();
+            if (sequence < 0) {
+                return false;
+            }
+            if (next.compareAndSet(sequence, sequence | CLOSED)) {
+                if (consumerWaiting) {
+                    LockSupport.unpark(consumer);
+                }
+                return true;
+            }
+        }
+    }
+
+    boolean isClosed() {
+        return next.get() < 0;
+    }
+
+    /**
+     * Returns the number of claimed slots which haven't been released yet.
+     */
+    int size() {
+        return (int) (claimed() - consumed.get());
+    }
+
+    boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Returns the number of events claimed so far.
+     */
+    long claimed() {
+        return next.get() & ~CLOSED;
+    }
+
+    /**
+     * Returns the sequence of the first slot the consumer hasn't released.
+     */
+    long first() {
+        return consumed.get();
+    }
+
+    /**
+     * Returns the number of consecutive published slots from {@link #first()}, at most <code>max</code>.
+     */
+    int available(int max) {
+        long first = consumed.get();
+        int n = 0;
+        while (n < max && published.get((int) (first + n) & mask) == first + n) {
+            n++;
+        }
+        return n;
+    }
+
+    /**
+     * Releases <code>n</code> slots from {@link #first()} for reuse.
+     */
+    void release(int n) {
+        long first = consumed.get();
+        for (int i = 0; i < n; i++) {
+            Event event = slots[(int) (first + i) & mask];
+            event.tag = null;
+            event.data = null;
+            event.record = null;
+        }
+        consumed.set(first + n);
+    }
+
+    /**
+     * Called by the consumer to wait until a slot is published, at most <code>timeoutNanos</code>.
+     */
+    void await(long timeoutNanos) {
+        consumer = Thread.currentThread();
+        consumerWaiting = true;
+        try {
+            if (available(1) == 0) {
+                LockSupport.parkNanos(this, timeoutNanos);
+            }
+        } finally {
+            consumerWaiting = false;
+        }
+    }
+}
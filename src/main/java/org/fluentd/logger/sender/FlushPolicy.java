@@ -0,0 +1,35 @@
+//
+// A Structured Logger for Fluent
+//
+// Copyright (C) 2011 - 2013 Muga Nishizawa
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//
+package org.fluentd.logger.sender;
+
+/**
+ * Decides when {@link RawSocketSender} writes the events it has buffered, instead of writing after
+ * every event.
+ */
+public interface FlushPolicy {
+    /**
+     * Returns whether to write the pending data now, given what has been buffered since the last write.
+     */
+    boolean shouldFlush(int pendingBytes, int pendingEvents);
+
+    /**
+     * Returns how long buffered events may wait before a background flush writes them, or 0 for no
+     * background flush.
+     */
+    long getMaxDelayMillis();
+}
@@ -0,0 +1,79 @@
+//
+// A Structured Logger for Fluent
+//
+// Copyright (C) 2011 - 2013 Muga Nishizawa
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//
+package org.fluentd.logger.sender;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The daemon thread running the background flushes of every sender, started on first use.
+ */
+class FlushScheduler {
+
+    private static ScheduledExecutorService executor;
+
+    private FlushScheduler() {
+    }
+
+    /**
+     * The background flush of a sender. It holds the sender weakly, so that a sender which was never
+     * closed can still be collected, and cancels itself once it has been.
+     */
+    abstract static class Task<T> implements Runnable {
+
+        private final WeakReference<T> target;
+
+        private volatile ScheduledFuture<?> future;
+
+        Task(T target) {
+            this.target = new WeakReference<T>(target);
+        }
+
+        public final void run() {
+            T t = target.get();
+            if (t == null) {
+                ScheduledFuture<?> f = future;
+                if (f != null) {
+                    f.cancel(false);
+                }
+                return;
+            }
+            run(t);
+        }
+
+        abstract void run(T target);
+    }
+
+    static synchronized ScheduledFuture<?> schedule(Task<?> task, long periodMillis) {
+        if (executor == null) {
+            executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "fluent-logger-flusher");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        task.future = executor.scheduleWithFixedDelay(task, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+        return task.future;
+    }
+}
@@ -0,0 +1,39 @@
+//
+// A Structured Logger for Fluent
+//
+// Copyright (C) 2011 - 2013 Muga Nishizawa
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//
+package org.fluentd.logger.sender;
+
+/**
+ * Writes after every event. This is the default.
+ */
+public class ImmediateFlushPolicy implements FlushPolicy {
+
+    public static final ImmediateFlushPolicy INSTANCE = new ImmediateFlushPolicy();
+
+    public boolean shouldFlush(int pendingBytes, int pendingEvents) {
+        return true;
+    }
+
+    public long getMaxDelayMillis() {
+        return 0;
+    }
+
+    @Override
+    public String toString() {
+        return "ImmediateFlushPolicy";
+    }
+}
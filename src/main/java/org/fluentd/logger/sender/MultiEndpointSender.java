@@ -0,0 +1,424 @@
+//
+// A Structured Logger for Fluent
+//
+// Copyright (C) 2011 - 2013 Muga Nishizawa
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//
+package org.fluentd.logger.sender;
+
+import org.fluentd.logger.errorhandler.ErrorHandler;
+import org.fluentd.logger.metrics.SenderMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Sends events to several fluentd endpoints, each through a {@link RawSocketSender} with its own
+ * connection, buffer and {@link Reconnector}. Each batch of events, i.e. what is buffered until the endpoint
+ * writes it as its {@link FlushPolicy} says, goes to one of the healthy endpoints, picked by a
+ * {@link BalancingPolicy}; an endpoint is taken out of rotation when sending to it fails, and comes back
+ * once its reconnector allows another attempt. Events buffered for an endpoint which fails are moved to a
+ * healthy one, so they're sent as long as any endpoint is up. Events are not kept in order across
+ * endpoints.
+ */
+public class MultiEndpointSender implements RecordSender {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MultiEndpointSender.class);
+
+    /**
+     * A fluentd endpoint and its share of the events.
+     */
+    public static class Endpoint {
+        private final String host;
+
+        private final int port;
+
+        private final int weight;
+
+        private final Reconnector reconnector;
+
+        public Endpoint(String host, int port) {
+            this(host, port, 1);
+        }
+
+        public Endpoint(String host, int port, int weight) {
+            this(host, port, weight, new ExponentialDelayReconnector());
+        }
+
+        public Endpoint(String host, int port, int weight, Reconnector reconnector) {
+            if (weight <= 0) {
+                throw new IllegalArgumentException("weight must be positive: " + weight);
+            }
+            this.host = host;
+            this.port = port;
+            this.weight = weight;
+            this.reconnector = reconnector;
+        }
+
+        public String getHost() {
+            return host;
+        }
+
+        public int getPort() {
+            return port;
+        }
+
+        public int getWeight() {
+            return weight;
+        }
+
+        /**
+         * Parses a comma separated list of <code>host[:port[:weight]]</code>.
+         */
+        public static List<Endpoint> parse(String hosts, int defaultPort) {
+            List<Endpoint> endpoints = new ArrayList<Endpoint>();
+            for (String spec : hosts.split(",")) {
+                String[] parts = spec.trim().split(":");
+                if (parts.length > 3 || parts[0].length() == 0) {
+                    throw new IllegalArgumentException("Invalid endpoint: " + spec);
+                }
+                int port = parts.length > 1 ? Integer.parseInt(parts[1]) : defaultPort;
+                int weight = parts.length > 2 ? Integer.parseInt(parts[2]) : 1;
+                endpoints.add(new Endpoint(parts[0], port, weight));
+            }
+            return endpoints;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s:%d:%d", host, port, weight);
+        }
+    }
+
+    private final RawSocketSender[] senders;
+
+    /**
+     * Guards picking the endpoints, but is never held while writing to them, so that a slow or dead endpoint
+     * doesn't hold up emitters to the others.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    // lets one thread at a time move events, so that two never wait for each other's endpoint
+    private final ReentrantLock failoverLock = new ReentrantLock();
+
+    private final int[] weights;
+
+    /** The running weights of smooth weighted round-robin. */
+    private final int[] currentWeights;
+
+    // the endpoints pick() chooses among, and their pending bytes; reused so that emitting doesn't allocate
+    private final boolean[] eligible;
+
+    private final int[] pending;
+
+    /** The endpoint of the current batch. */
+    private RawSocketSender current;
+
+    private final BalancingPolicy policy;
+
+    private final String name;
+
+    /**
+     * Creates a sender for a comma separated list of <code>host[:port[:weight]]</code>, so that it can be
+     * picked with <code>fluentd.logger.sender.class</code>.
+     */
+    public MultiEndpointSender(String hosts, int port, int timeout, int bufferCapacity) {
+        this(Endpoint.parse(hosts, port), timeout, bufferCapacity, BalancingPolicy.ROUND_ROBIN);
+    }
+
+    /**
+     * @param bufferCapacity the capacity of the buffer of each endpoint, in bytes
+     */
+    public MultiEndpointSender(List<Endpoint> endpoints, int timeout, int bufferCapacity, BalancingPolicy policy) {
+        if (endpoints.isEmpty()) {
+            throw new IllegalArgumentException("No endpoints");
+        }
+        if (policy == null) {
+            throw new IllegalArgumentException("policy is null");
+        }
+        senders = new RawSocketSender[endpoints.size()];
+        weights = new int[senders.length];
+        currentWeights = new int[senders.length];
+        eligible = new boolean[senders.length];
+        pending = new int[senders.length];
+        for (int i = 0; i < senders.length; i++) {
+            Endpoint endpoint = endpoints.get(i);
+            senders[i] = new RawSocketSender(endpoint.host, endpoint.port, timeout, bufferCapacity,
+                    endpoint.reconnector);
+            weights[i] = endpoint.weight;
+        }
+        this.policy = policy;
+        name = String.format("multi_%s_%d_%d", endpoints, timeout, bufferCapacity);
+    }
+
+    @Override
+    public boolean emit(String tag, Map<String, Object> data) {
+        return emit(tag, System.currentTimeMillis() / 1000, data);
+    }
+
+    @Override
+    public boolean emit(String tag, long timestamp, Map<String, Object> data) {
+        return emit(new Event(tag, timestamp, data));
+    }
+
+    @Override
+    public boolean emit(String tag, long timestamp, EncodedRecord record) {
+        return emit(new Event(tag, timestamp, record));
+    }
+
+    @Override
+    public boolean emit(String tag, long timestamp, int nanos, Map<String, Object> data) {
+        return emit(new Event(tag, timestamp, nanos, data));
+    }
+
+    @Override
+    public boolean emit(String tag, long timestamp, int nanos, EncodedRecord record) {
+        return emit(new Event(tag, timestamp, nanos, record));
+    }
+
+    protected boolean emit(Event event) {
+        RawSocketSender sender = select();
+        boolean emitted = sender.emit(event, true);
+        if (sender.isFailing()) {
+            failover(sender);
+            if (!emitted) {
+                RawSocketSender other = select();
+                if (other != sender) {
+                    emitted = other.emit(event, true);
+                }
+            }
+        }
+        return emitted;
+    }
+
+    /**
+     * Returns the endpoint of the current batch, or picks the one of the next batch once the current batch
+     * has been written or its endpoint failed.
+     */
+    private RawSocketSender select() {
+        lock.lock();
+        try {
+            if (current == null || !current.hasUnflushedEvents() || current.isFailing()) {
+                current = pick();
+            }
+            return current;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Picks among the endpoints which haven't failed, or else among the ones whose reconnector allows
+     * another attempt. If none does, the events are buffered for the first endpoint. With
+     * {@link BalancingPolicy#LEAST_IN_FLIGHT}, the endpoints with the fewest pending bytes per weight are
+     * picked by weighted round-robin, so that ties, such as idle endpoints, are spread by weight.
+     */
+    private RawSocketSender pick() {
+        long now = System.currentTimeMillis();
+        boolean any = false;
+        for (int i = 0; i < senders.length; i++) {
+            eligible[i] = !senders[i].isFailing();
+            any |= eligible[i];
+        }
+        if (!any) {
+            for (int i = 0; i < senders.length; i++) {
+                eligible[i] = senders[i].isReconnectable(now);
+                any |= eligible[i];
+            }
+        }
+        if (!any) {
+            return senders[0];
+        }
+
+        int best = -1;
+        if (policy == BalancingPolicy.LEAST_IN_FLIGHT) {
+            // compare pending / weight without dividing; the metrics are read without locking the senders
+            for (int i = 0; i < senders.length; i++) {
+                if (eligible[i]) {
+                    pending[i] = senders[i].getMetrics().getPendingBytes();
+                    if (best < 0 || (long) pending[i] * weights[best] < (long) pending[best] * weights[i]) {
+                        best = i;
+                    }
+                }
+            }
+            for (int i = 0; i < senders.length; i++) {
+                if (eligible[i] && (long) pending[i] * weights[best] != (long) pending[best] * weights[i]) {
+                    eligible[i] = false;
+                }
+            }
+            best = -1;
+        }
+
+        int total = 0;
+        for (int i = 0; i < senders.length; i++) {
+            if (eligible[i]) {
+                currentWeights[i] += weights[i];
+                total += weights[i];
+                if (best < 0 || currentWeights[i] > currentWeights[best]) {
+                    best = i;
+                }
+            }
+        }
+        currentWeights[best] -= total;
+        return senders[best];
+    }
+
+    /**
+     * Moves the events buffered for an endpoint which failed to a healthy one, and sends them from there.
+     */
+    private void failover(RawSocketSender failed) {
+        for (RawSocketSender target : senders) {
+            if (failed.getPendingBytes() == 0) {
+                return;
+            }
+            if (target == failed || target.isFailing()) {
+                continue;
+            }
+            boolean moved;
+            failoverLock.lock();
+            try {
+                moved = failed.moveTo(target);
+            } finally {
+                failoverLock.unlock();
+            }
+            if (moved) {
+                LOG.info("Moved events from {} to {}", failed.getName(), target.getName());
+                target.flush();
+                failed = target;
+            }
+        }
+    }
+
+    @Override
+    public void flush() {
+        for (RawSocketSender sender : senders) {
+            sender.flush();
+        }
+        for (RawSocketSender sender : senders) {
+            if (sender.isFailing()) {
+                failover(sender);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        flush();
+        for (RawSocketSender sender : senders) {
+            sender.close();
+        }
+    }
+
+    /**
+     * Switches every endpoint to the PackedForward mode, see {@link RawSocketSender#setPackedForward(boolean)}.
+     */
+    public void setPackedForward(boolean enabled) {
+        for (RawSocketSender sender : senders) {
+            sender.setPackedForward(enabled);
+        }
+    }
+
+    /**
+     * Enables compression for every endpoint, see {@link RawSocketSender#enableCompression(int, int)}.
+     */
+    public void enableCompression(int level, int minBatchSize) {
+        for (RawSocketSender sender : senders) {
+            sender.enableCompression(level, minBatchSize);
+        }
+    }
+
+    /**
+     * Sets the flush policy of every endpoint, see {@link RawSocketSender#setFlushPolicy(FlushPolicy)}.
+     */
+    public void setFlushPolicy(FlushPolicy flushPolicy) {
+        for (RawSocketSender sender : senders) {
+            sender.setFlushPolicy(flushPolicy);
+        }
+    }
+
+    /**
+     * Sets the overflow policy of every endpoint, see
+     * {@link RawSocketSender#setOverflowPolicy(OverflowPolicy, long)}.
+     */
+    public void setOverflowPolicy(OverflowPolicy overflowPolicy, long blockTimeoutMillis) {
+        for (RawSocketSender sender : senders) {
+            sender.setOverflowPolicy(overflowPolicy, blockTimeoutMillis);
+        }
+    }
+
+    /**
+     * Sets the buffer pool of every endpoint, see {@link RawSocketSender#setBufferPool(DirectBufferPool)}.
+     */
+    public void setBufferPool(DirectBufferPool bufferPool) {
+        for (RawSocketSender sender : senders) {
+            sender.setBufferPool(bufferPool);
+        }
+    }
+
+    /**
+     * Returns the metrics of each endpoint, which are registered as MXBeans until this sender is closed.
+     */
+    public List<SenderMetrics> getMetrics() {
+        List<SenderMetrics> metrics = new ArrayList<SenderMetrics>(senders.length);
+        for (RawSocketSender sender : senders) {
+            metrics.add(sender.getMetrics());
+        }
+        return metrics;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public String toString() {
+        return getName();
+    }
+
+    /**
+     * Returns true if the connection to any of the endpoints is established.
+     */
+    @Override
+    public boolean isConnected() {
+        for (RawSocketSender sender : senders) {
+            if (sender.isConnected()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void setErrorHandler(ErrorHandler errorHandler) {
+        if (errorHandler == null) {
+            throw new IllegalArgumentException("errorHandler is null");
+        }
+
+        for (RawSocketSender sender : senders) {
+            sender.setErrorHandler(errorHandler);
+        }
+    }
+
+    @Override
+    public void removeErrorHandler() {
+        for (RawSocketSender sender : senders) {
+            sender.removeErrorHandler();
+        }
+    }
+}
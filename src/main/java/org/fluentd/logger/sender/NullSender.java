@@ -21,7 +21,7 @@ import org.fluentd.logger.errorhandler.ErrorHandler;
 
 import java.util.Map;
 
-public class NullSender implements Sender {
+public class NullSender implements RecordSender {
 
     public NullSender(String host, int port, int timeout, int bufferCapacity) {
     }
@@ -36,6 +36,21 @@ public class NullSender implements Sender {
         return true;
     }
 
+    @Override
+    public boolean emit(String tag, long timestamp, EncodedRecord record) {
+        return true;
+    }
+
+    @Override
+    public boolean emit(String tag, long timestamp, int nanos, Map<String, Object> data) {
+        return true;
+    }
+
+    @Override
+    public boolean emit(String tag, long timestamp, int nanos, EncodedRecord record) {
+        return true;
+    }
+
     @Override
     public void flush() {
     }
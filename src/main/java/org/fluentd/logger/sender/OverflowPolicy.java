@@ -0,0 +1,44 @@
+//
+// A Structured Logger for Fluent
+//
+// Copyright (C) 2011 - 2013 Muga Nishizawa
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//
+package org.fluentd.logger.sender;
+
+/**
+ * What a sender does with an event it has no room for.
+ */
+public enum OverflowPolicy {
+    /** Discards the event and makes <code>emit</code> return false. */
+    DROP,
+
+    /**
+     * Blocks the emitting thread until there is room for the event, up to a timeout if the sender has one,
+     * and then discards it.
+     */
+    BLOCK,
+
+    /**
+     * Discards the oldest buffered events which aren't being written yet, until there is room for the new
+     * one. Only {@link RawSocketSender} supports it.
+     */
+    DROP_OLDEST,
+
+    /**
+     * Discards the event after passing it to
+     * {@link org.fluentd.logger.errorhandler.ErrorHandler#handleBufferOverflow}.
+     */
+    CALLBACK
+}
@@ -0,0 +1,316 @@
+//
+// A Structured Logger for Fluent
+//
+// Copyright (C) 2011 - 2013 Muga Nishizawa
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//
+package org.fluentd.logger.sender;
+
+import org.msgpack.MessagePack;
+import org.msgpack.packer.BufferPacker;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Keeps track of which tag each run of <code>[time, record]</code> entries in a pending buffer belongs to,
+ * and writes the buffer as PackedForward messages, <code>[tag, entries]</code>, one per tag. With
+ * compression enabled, entries of a tag which are large enough are gzipped and sent as CompressedPackedForward
+ * messages, <code>[tag, gzipped entries, {"size": count, "compressed": "gzip"}]</code>.
+ */
+class PackedForward {
+
+    static class Run {
+        final String tag;
+
+        int start;
+
+        int end;
+
+        int count;
+
+        Run(String tag, int start, int end) {
+            this.tag = tag;
+            this.start = start;
+            this.end = end;
+            this.count = 1;
+        }
+    }
+
+    private final MessagePack msgpack;
+
+    private final TagCache<byte[]> tags;
+
+    private final List<Run> runs = new ArrayList<Run>();
+
+    private int sealed;
+
+    private boolean compressed;
+
+    private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+
+    private int minCompressionSize;
+
+    private final ByteArrayOutputStream compressionBuffer = new ByteArrayOutputStream();
+
+    PackedForward(MessagePack msgpack, TagCache<byte[]> tags) {
+        this.msgpack = msgpack;
+        this.tags = tags;
+    }
+
+    void enableCompression(int level, int minSize) {
+        if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("Invalid compression level: " + level);
+        }
+        compressed = true;
+        compressionLevel = level;
+        minCompressionSize = minSize;
+    }
+
+    void disableCompression() {
+        compressed = false;
+    }
+
+    boolean isCompressed() {
+        return compressed;
+    }
+
+    /**
+     * Records that the entry at <code>[start, end)</code> of the pending buffer belongs to the tag.
+     */
+    void add(String tag, int start, int end) {
+        if (runs.size() > sealed) {
+            Run last = runs.get(runs.size() - 1);
+            if (last.end == start && last.tag.equals(tag)) {
+                last.end = end;
+                last.count++;
+                return;
+            }
+        }
+        runs.add(new Run(tag, start, end));
+    }
+
+    boolean isEmpty() {
+        return runs.isEmpty();
+    }
+
+    void clear() {
+        runs.clear();
+        sealed = 0;
+    }
+
+    /**
+     * Marks the current runs as being written, so that entries added later start new runs.
+     */
+    void seal() {
+        sealed = runs.size();
+    }
+
+    /**
+     * Reverts {@link #seal()} after the sealed runs could not be written.
+     */
+    void unseal() {
+        sealed = 0;
+    }
+
+    /**
+     * Forgets the sealed runs once they've been written and the first <code>offset</code> bytes of the
+     * pending buffer have been discarded.
+     */
+    void consume(int offset) {
+        runs.subList(0, sealed).clear();
+        for (Run run : runs) {
+            run.start -= offset;
+            run.end -= offset;
+        }
+        sealed = 0;
+    }
+
+    /**
+     * Forgets the oldest entry after the sealed runs, which ends at <code>end</code>.
+     */
+    void evictOldest(int end) {
+        Run run = runs.get(sealed);
+        run.start = end;
+        if (--run.count == 0) {
+            runs.remove(sealed);
+        }
+    }
+
+    /**
+     * Moves the runs after the sealed ones <code>len</code> bytes back, after evicted entries before them
+     * have been removed from the pending buffer.
+     */
+    void evicted(int len) {
+        for (int i = sealed; i < runs.size(); i++) {
+            Run run = runs.get(i);
+            run.start -= len;
+            run.end -= len;
+        }
+    }
+
+    /**
+     * Adds the runs to <code>target</code>, for entries copied to <code>offset</code> bytes further into its
+     * pending buffer.
+     */
+    void copyTo(PackedForward target, int offset) {
+        for (Run run : runs) {
+            target.add(run.tag, run.start + offset, run.end + offset);
+            target.runs.get(target.runs.size() - 1).count += run.count - 1;
+        }
+    }
+
+    /**
+     * Groups the runs by tag, keeping the order in which the tags first appeared.
+     */
+    Map<String, List<Run>> groupByTag() {
+        Map<String, List<Run>> groups = new LinkedHashMap<String, List<Run>>();
+        for (Run run : runs) {
+            List<Run> group = groups.get(run.tag);
+            if (group == null) {
+                group = new ArrayList<Run>();
+                groups.put(run.tag, group);
+            }
+            group.add(run);
+        }
+        return groups;
+    }
+
+    /**
+     * Adds the entries of <code>buffer</code> to <code>out</code> as one PackedForward message per tag.
+     */
+    void writeTo(List<ByteBuffer> out, ByteBuffer buffer) throws IOException {
+        for (Map.Entry<String, List<Run>> group : groupByTag().entrySet()) {
+            writeMessage(out, buffer, group.getKey(), group.getValue(), null);
+        }
+    }
+
+    /**
+     * Adds the runs of a tag to <code>out</code> as a PackedForward message. Uncompressed entries are added
+     * as slices of <code>buffer</code> rather than copied. If <code>chunkId</code> is not null, the message
+     * carries it as the <code>chunk</code> option so that fluentd acknowledges it.
+     */
+    void writeMessage(List<ByteBuffer> out, ByteBuffer buffer, String tag, List<Run> group, String chunkId)
+            throws IOException {
+        int size = 0;
+        int count = 0;
+        for (Run run : group) {
+            size += run.end - run.start;
+            count += run.count;
+        }
+
+        if (compressed && size >= minCompressionSize) {
+            byte[] gzipped = compress(buffer, group);
+            out.add(ByteBuffer.wrap(header(tag, gzipped.length, true)));
+            out.add(ByteBuffer.wrap(gzipped));
+            out.add(ByteBuffer.wrap(option(count, true, chunkId)));
+        } else {
+            out.add(ByteBuffer.wrap(header(tag, size, chunkId != null)));
+            for (Run run : group) {
+                out.add(slice(buffer, run));
+            }
+            if (chunkId != null) {
+                out.add(ByteBuffer.wrap(option(count, false, chunkId)));
+            }
+        }
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, Run run) {
+        ByteBuffer slice = buffer.duplicate();
+        slice.limit(run.end);
+        slice.position(run.start);
+        return slice;
+    }
+
+    private byte[] compress(ByteBuffer buffer, List<Run> group) throws IOException {
+        compressionBuffer.reset();
+        final int level = compressionLevel;
+        GZIPOutputStream gzip = new GZIPOutputStream(compressionBuffer) {
+            {
+                def.setLevel(level);
+            }
+        };
+        byte[] copy = null;
+        for (Run run : group) {
+            int len = run.end - run.start;
+            if (buffer.hasArray()) {
+                gzip.write(buffer.array(), buffer.arrayOffset() + run.start, len);
+            } else {
+                if (copy == null || copy.length < len) {
+                    copy = new byte[len];
+                }
+                slice(buffer, run).get(copy, 0, len);
+                gzip.write(copy, 0, len);
+            }
+        }
+        gzip.close();
+        return compressionBuffer.toByteArray();
+    }
+
+    /**
+     * Encodes <code>[tag, </code> followed by the header of a raw value of <code>size</code> bytes. The
+     * array has room for an option if <code>withOption</code> is true.
+     */
+    byte[] header(String tag, int size, boolean withOption) throws IOException {
+        byte[] encodedTag = tags.get(tag);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(encodedTag.length + 6);
+        out.write(withOption ? 0x93 : 0x92);
+        out.write(encodedTag);
+        writeRawHeader(out, size);
+        return out.toByteArray();
+    }
+
+    private byte[] option(int count, boolean gzipped, String chunkId) throws IOException {
+        BufferPacker pk = msgpack.createBufferPacker();
+        pk.writeMapBegin(1 + (gzipped ? 1 : 0) + (chunkId != null ? 1 : 0));
+        {
+            pk.write("size");
+            pk.write(count);
+            if (gzipped) {
+                pk.write("compressed");
+                pk.write("gzip");
+            }
+            if (chunkId != null) {
+                pk.write("chunk");
+                pk.write(chunkId);
+            }
+        }
+        pk.writeMapEnd();
+        return pk.toByteArray();
+    }
+
+    static void writeRawHeader(OutputStream out, int size) throws IOException {
+        if (size < 32) {
+            out.write(0xa0 | size);
+        } else if (size < 65536) {
+            out.write(0xda);
+            out.write(size >>> 8);
+            out.write(size);
+        } else {
+            out.write(0xdb);
+            out.write(size >>> 24);
+            out.write(size >>> 16);
+            out.write(size >>> 8);
+            out.write(size);
+        }
+    }
+}
@@ -0,0 +1,219 @@
+//
+// A Structured Logger for Fluent
+//
+// Copyright (C) 2011 - 2013 Muga Nishizawa
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//
+package org.fluentd.logger.sender;
+
+import org.fluentd.logger.errorhandler.ErrorHandler;
+import org.fluentd.logger.metrics.SenderMetrics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Spreads events over several connections to the same fluentd, each a {@link RawSocketSender} with its own
+ * buffer and lock. A thread always emits through the same connection, picked from its id, so threads
+ * rarely contend with each other and the events of a thread are sent in order.
+ */
+public class PooledSender implements RecordSender {
+
+    private final RawSocketSender[] stripes;
+
+    private final String name;
+
+    public PooledSender() {
+        this("localhost", 24224);
+    }
+
+    public PooledSender(String host, int port) {
+        this(host, port, 3 * 1000, 8 * 1024 * 1024);
+    }
+
+    public PooledSender(String host, int port, int timeout, int bufferCapacity) {
+        this(host, port, timeout, bufferCapacity, defaultConnections());
+    }
+
+    /**
+     * Creates a pool of <code>connections</code> connections sharing <code>bufferCapacity</code> bytes of
+     * buffer between them.
+     */
+    public PooledSender(String host, int port, int timeout, int bufferCapacity, int connections) {
+        this(createStripes(host, port, timeout, bufferCapacity, connections));
+    }
+
+    /**
+     * Creates a pool of the given senders, e.g. ones set up with
+     * {@link RawSocketSender#setPackedForward(boolean)}. They must not be used directly afterwards.
+     */
+    public PooledSender(RawSocketSender... senders) {
+        if (senders.length == 0) {
+            throw new IllegalArgumentException("No senders");
+        }
+        stripes = senders.clone();
+        name = String.format("pool_%d_%s", stripes.length, stripes[0].getName());
+    }
+
+    private static int defaultConnections() {
+        return Math.min(Runtime.getRuntime().availableProcessors(), 8);
+    }
+
+    private static RawSocketSender[] createStripes(String host, int port, int timeout, int bufferCapacity,
+            int connections) {
+        if (connections <= 0) {
+            throw new IllegalArgumentException("connections must be positive: " + connections);
+        }
+        RawSocketSender[] senders = new RawSocketSender[connections];
+        for (int i = 0; i < connections; i++) {
+            // reconnectors keep the error history of a connection, so each one gets its own
+            senders[i] = new RawSocketSender(host, port, timeout, bufferCapacity / connections,
+                    new ExponentialDelayReconnector());
+        }
+        return senders;
+    }
+
+    private RawSocketSender stripe() {
+        // spread sequential thread ids over the stripes
+        long h = Thread.currentThread().getId() * 0x9E3779B97F4A7C15L;
+        return stripes[(int) ((h >>> 33) % stripes.length)];
+    }
+
+    @Override
+    public boolean emit(String tag, Map<String, Object> data) {
+        return emit(tag, System.currentTimeMillis() / 1000, data);
+    }
+
+    @Override
+    public boolean emit(String tag, long timestamp, Map<String, Object> data) {
+        return stripe().emit(tag, timestamp, data);
+    }
+
+    @Override
+    public boolean emit(String tag, long timestamp, EncodedRecord record) {
+        return stripe().emit(tag, timestamp, record);
+    }
+
+    @Override
+    public boolean emit(String tag, long timestamp, int nanos, Map<String, Object> data) {
+        return stripe().emit(tag, timestamp, nanos, data);
+    }
+
+    @Override
+    public boolean emit(String tag, long timestamp, int nanos, EncodedRecord record) {
+        return stripe().emit(tag, timestamp, nanos, record);
+    }
+
+    @Override
+    public void flush() {
+        for (RawSocketSender stripe : stripes) {
+            stripe.flush();
+        }
+    }
+
+    @Override
+    public void close() {
+        for (RawSocketSender stripe : stripes) {
+            stripe.close();
+        }
+    }
+
+    /**
+     * Sets the flush policy of every connection, see {@link RawSocketSender#setFlushPolicy(FlushPolicy)}.
+     */
+    public void setFlushPolicy(FlushPolicy flushPolicy) {
+        for (RawSocketSender stripe : stripes) {
+            stripe.setFlushPolicy(flushPolicy);
+        }
+    }
+
+    /**
+     * Sets the overflow policy of every connection, see
+     * {@link RawSocketSender#setOverflowPolicy(OverflowPolicy, long)}.
+     */
+    public void setOverflowPolicy(OverflowPolicy overflowPolicy, long blockTimeoutMillis) {
+        for (RawSocketSender stripe : stripes) {
+            stripe.setOverflowPolicy(overflowPolicy, blockTimeoutMillis);
+        }
+    }
+
+    /**
+     * Sets the buffer pool of every connection, see {@link RawSocketSender#setBufferPool(DirectBufferPool)}.
+     */
+    public void setBufferPool(DirectBufferPool bufferPool) {
+        for (RawSocketSender stripe : stripes) {
+            stripe.setBufferPool(bufferPool);
+        }
+    }
+
+    /**
+     * Returns the number of connections.
+     */
+    public int getConnections() {
+        return stripes.length;
+    }
+
+    /**
+     * Returns the metrics of each connection, which are registered as MXBeans until this sender is closed.
+     */
+    public List<SenderMetrics> getMetrics() {
+        List<SenderMetrics> metrics = new ArrayList<SenderMetrics>(stripes.length);
+        for (RawSocketSender stripe : stripes) {
+            metrics.add(stripe.getMetrics());
+        }
+        return metrics;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public String toString() {
+        return getName();
+    }
+
+    /**
+     * Returns true if any of the connections is established; they're established on the first flush.
+     */
+    @Override
+    public boolean isConnected() {
+        for (RawSocketSender stripe : stripes) {
+            if (stripe.isConnected()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void setErrorHandler(ErrorHandler errorHandler) {
+        if (errorHandler == null) {
+            throw new IllegalArgumentException("errorHandler is null");
+        }
+
+        for (RawSocketSender stripe : stripes) {
+            stripe.setErrorHandler(errorHandler);
+        }
+    }
+
+    @Override
+    public void removeErrorHandler() {
+        for (RawSocketSender stripe : stripes) {
+            stripe.removeErrorHandler();
+        }
+    }
+}
@@ -18,33 +18,78 @@
 package org.fluentd.logger.sender;
 
 import org.fluentd.logger.errorhandler.ErrorHandler;
+import org.fluentd.logger.metrics.SenderMetrics;
 import org.msgpack.MessagePack;
+import org.msgpack.unpacker.BufferUnpacker;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.File;
 import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
 import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.locks.ReentrantLock;
 
-public class RawSocketSender implements Sender {
+/**
+ * Sends events over a non-blocking {@link SocketChannel}. Events are serialized into a pending buffer,
+ * which is written to the channel with gathering writes straight from the buffer. A write the socket
+ * can't take at once is resumed by later emits, so emitting never waits for the network; {@link #flush()}
+ * and {@link #close()} wait for the pending data to be written, at most <code>timeout</code> milliseconds
+ * without progress.
+ */
+public class RawSocketSender implements RecordSender {
 
     private static final Logger LOG = LoggerFactory.getLogger(RawSocketSender.class);
 
     private static final ErrorHandler DEFAULT_ERROR_HANDLER = new ErrorHandler() {};
 
+    // DROP_OLDEST evicts at least this fraction of the buffer at once, not to compact it for every event
+    private static final int EVICTION_FRACTION = 16;
+
+    /**
+     * Guards all the state below. It's a {@link ReentrantLock} rather than the monitor since writes and
+     * waits for acks happen while holding it, which would pin virtual threads to their carriers.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
     private MessagePack msgpack;
 
-    private Socket socket;
+    // volatile, as isConnected() reads it without the lock
+    private volatile SocketChannel channel;
 
-    private int timeout;
+    private Selector selector;
 
-    private BufferedOutputStream out;
+    private int timeout;
 
     private ByteBuffer pendings;
 
+    private ByteBufferPacker packer;
+
+    private final int bufferCapacity;
+
+    /** Where the pending buffer comes from if it's direct, growing up to {@link #bufferCapacity}. */
+    private DirectBufferPool bufferPool;
+
+    /** Buffers being written to the channel; the ones for the pending buffer are slices of it. */
+    private ByteBuffer[] outgoing;
+
+    private int outgoingIndex;
+
+    /** The end of the part of the pending buffer being written. */
+    private int outgoingMark;
+
+    private long outgoingStartNanos;
+
     private Reconnector reconnector;
 
     private String name;
@@ -55,6 +100,40 @@ public class RawSocketSender implements Sender {
 
     private ErrorHandler errorHandler = DEFAULT_ERROR_HANDLER;
 
+    private PackedForward packedForward;
+
+    private AckWindow ackWindow;
+
+    private final ByteBuffer ackReadBuffer = ByteBuffer.allocate(256);
+
+    private SpillBuffer spill;
+
+    private final SenderMetrics metrics;
+
+    /** Whether {@link #outgoing} is the oldest segment of the spill buffer. */
+    private boolean replaying;
+
+    private FlushPolicy flushPolicy = ImmediateFlushPolicy.INSTANCE;
+
+    private ScheduledFuture<?> flushTask;
+
+    // events buffered since the last write
+    private volatile int unflushedEvents;
+
+    // whether the last attempt to send failed; this and unflushedEvents are volatile, as MultiEndpointSender
+    // reads them without the lock
+    private volatile boolean failing;
+
+    private OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+
+    // how long BLOCK waits for the buffer to be written, or 0 for as long as the writes make progress
+    private long blockTimeoutMillis;
+
+    // where DROP_OLDEST serializes an event which doesn't fit, to learn how much room it needs
+    private ByteBuffer scratch;
+
+    private ByteBufferPacker scratchPacker;
+
     public RawSocketSender() {
         this("localhost", 24224);
     }
@@ -69,54 +148,173 @@ public class RawSocketSender implements Sender {
     }
 
     public RawSocketSender(String host, int port, int timeout, int bufferCapacity, Reconnector reconnector) {
+        this(host, port, timeout, bufferCapacity, reconnector, null);
+    }
+
+    /**
+     * Creates a sender whose pending buffer is taken from <code>bufferPool</code>, see
+     * {@link #setBufferPool(DirectBufferPool)}, or allocated on the heap if it's null.
+     */
+    public RawSocketSender(String host, int port, int timeout, int bufferCapacity, Reconnector reconnector,
+            DirectBufferPool bufferPool) {
         msgpack = new MessagePack();
         msgpack.register(Event.class, Event.EventTemplate.INSTANCE);
-        pendings = ByteBuffer.allocate(bufferCapacity);
+        this.bufferCapacity = bufferCapacity;
+        this.bufferPool = bufferPool;
+        pendings = bufferPool != null ? bufferPool.acquire(DirectBufferPool.segmentSize(0, bufferCapacity))
+                : ByteBuffer.allocate(bufferCapacity);
+        packer = new ByteBufferPacker(msgpack, pendings);
         this.host = host;
         this.port = port;
         this.reconnector = reconnector;
         name = String.format("%s_%d_%d_%d", host, port, timeout, bufferCapacity);
         this.timeout = timeout;
+        metrics = new SenderMetrics(bufferCapacity);
+        metrics.register(name);
     }
 
     private void connect() throws IOException {
+        metrics.connecting(System.currentTimeMillis());
         try {
-            socket = new Socket();
-            socket.connect(new InetSocketAddress(host, port), timeout);
-            out = new BufferedOutputStream(socket.getOutputStream());
+            selector = Selector.open();
+            channel = openChannel();
+            channel.configureBlocking(false);
+            if (!channel.connect(getRemoteAddress())) {
+                if (!waitFor(SelectionKey.OP_CONNECT, timeout)) {
+                    throw new SocketTimeoutException("connect timed out");
+                }
+                channel.finishConnect();
+            }
         } catch (IOException e) {
+            closeSocket();
             throw e;
         }
+
+        if (ackWindow != null) {
+            resendChunks();
+        }
+    }
+
+    /**
+     * Opens an unconnected channel of the transport to fluentd, TCP unless a subclass says otherwise.
+     */
+    protected SocketChannel openChannel() throws IOException {
+        return SocketChannel.open();
+    }
+
+    /**
+     * Returns the address of fluentd to connect to.
+     */
+    protected SocketAddress getRemoteAddress() {
+        return new InetSocketAddress(host, port);
     }
 
     private void reconnect() throws IOException {
-        if (socket == null) {
+        if (channel == null) {
             connect();
-        } else if (socket.isClosed() || (!socket.isConnected())) {
-            close();
+        } else if (!channel.isOpen() || !channel.isConnected()) {
+            closeSocket();
             connect();
         }
     }
 
+    /**
+     * Waits until the channel is ready for one of <code>ops</code>, at most <code>millis</code> milliseconds.
+     */
+    private boolean waitFor(int ops, long millis) throws IOException {
+        SelectionKey key = channel.keyFor(selector);
+        if (key == null) {
+            key = channel.register(selector, ops);
+        } else {
+            key.interestOps(ops);
+        }
+        selector.select(Math.max(millis, 1));
+        selector.selectedKeys().clear();
+        return key.isValid() && (key.readyOps() & ops) != 0;
+    }
+
+    /**
+     * Writes the pending data which hasn't been written yet, and closes the connection.
+     */
     @Override
-    public synchronized void close() {
-        // close output stream
-        if (out != null) {
+    public void close() {
+        lock.lock();
+        try {
+            cancelFlushTask();
+            if (isConnected() && (outgoing != null || pendings.position() > 0 || (spill != null && !spill.isEmpty()))) {
+                flush(true);
+            }
+
+            if (ackWindow != null && !ackWindow.isEmpty()) {
+                // give fluentd a chance to acknowledge what has been sent
+                try {
+                    if (isConnected()) {
+                        waitForAcks();
+                    }
+                } catch (IOException e) {
+                    LOG.debug("Failed to read acks", e);
+                }
+                if (!ackWindow.isEmpty()) {
+                    LOG.error("Closing {} with {} unacknowledged chunks", name, ackWindow.size());
+                }
+            }
+            closeSocket();
+
+            if (spill != null) {
+                // keep what couldn't be sent for the next process
+                if (pendings.position() > 0 && !spillBuffer()) {
+                    LOG.error("Closing {} with {} bytes unsent", name, pendings.position());
+                }
+                spill.close();
+            }
+            if (bufferPool != null) {
+                // other senders reuse the pooled buffer, so what's left unsent moves to a heap buffer of the
+                // full capacity, in which the sender can still buffer events if it's used again
+                replaceBuffer(ByteBuffer.allocate(bufferCapacity));
+                bufferPool = null;
+            }
+            metrics.pendingBytes(pendings.position());
+            metrics.unregister();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void cancelFlushTask() {
+        if (flushTask != null) {
+            flushTask.cancel(false);
+            flushTask = null;
+        }
+    }
+
+    private void closeSocket() {
+        // close channel
+        if (channel != null) {
             try {
-                out.close();
+                channel.close();
             } catch (IOException e) { // ignore
             } finally {
-                out = null;
+                channel = null;
             }
         }
 
-        // close socket
-        if (socket != null) {
+        // close selector
+        if (selector != null) {
             try {
-                socket.close();
+                selector.close();
             } catch (IOException e) { // ignore
             } finally {
-                socket = null;
+                selector = null;
+            }
+        }
+
+        // whatever was being written has to be written again from the start
+        if (outgoing != null) {
+            outgoing = null;
+            outgoingMark = 0;
+            replaying = false;
+            if (packedForward != null) {
+                packedForward.unseal();
             }
         }
     }
@@ -131,71 +329,291 @@ public class RawSocketSender implements Sender {
         return emit(new Event(tag, timestamp, data));
     }
 
+    @Override
+    public boolean emit(String tag, long timestamp, EncodedRecord record) {
+        return emit(new Event(tag, timestamp, record));
+    }
+
+    @Override
+    public boolean emit(String tag, long timestamp, int nanos, Map<String, Object> data) {
+        return emit(new Event(tag, timestamp, nanos, data));
+    }
+
+    @Override
+    public boolean emit(String tag, long timestamp, int nanos, EncodedRecord record) {
+        return emit(new Event(tag, timestamp, nanos, record));
+    }
+
     protected boolean emit(Event event) {
+        return emit(event, true);
+    }
+
+    /**
+     * Serializes the event into the pending buffer. When <code>flush</code> is false, the buffer is only
+     * written out if it has no room for the event; callers batching several events are expected to flush
+     * after the last one.
+     */
+    boolean emit(Event event, boolean flush) {
         if (LOG.isTraceEnabled()) {
             LOG.trace(String.format("Created %s", new Object[]{event}));
         }
 
-        byte[] bytes = null;
-        try {
-            // serialize tag, timestamp and data
-            bytes = msgpack.write(event);
-        } catch (IOException e) {
-            LOG.error("Cannot serialize event: " + event, e);
-            return false;
-        }
-
-        // send serialized data
-        return send(bytes);
+        return send(event, flush);
     }
 
-    private boolean flushBuffer() {
+    private boolean flushBuffer(long waitDeadline) {
         if (reconnector.enableReconnection(System.currentTimeMillis())) {
-            flush();
+            flush(true, waitDeadline);
             if (pendings.position() == 0) {
                 return true;
-            } else {
-                LOG.error("Cannot send logs to " + socket.getInetAddress().toString());
+            } else if (System.currentTimeMillis() < waitDeadline) {
+                LOG.error("Cannot send logs to {}:{}", host, port);
             }
         }
 
         return false;
     }
 
-    private synchronized boolean send(byte[] bytes) {
-        // buffering
-        if (pendings.position() + bytes.length > pendings.capacity()) {
-            if (!flushBuffer()) {
+    private boolean send(Event event, boolean flush) {
+        lock.lock();
+        try {
+            if (!append(event)) {
+                metrics.eventDropped();
+                metrics.pendingBytes(pendings.position());
                 return false;
             }
-            if (bytes.length > pendings.remaining()) {
-                LOG.error("Log data {} larger than remaining buffer size {}", bytes.length, pendings.remaining());
+            metrics.eventEmitted();
+            unflushedEvents++;
+
+            if (flush && flushPolicy.shouldFlush(pendings.position(), unflushedEvents)) {
+                // suppress reconnection burst
+                if (reconnector.enableReconnection(System.currentTimeMillis())) {
+                    // send pending data
+                    flush(false);
+                }
+            }
+            metrics.pendingBytes(pendings.position());
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Serializes the event straight into the pending buffer, making room for it if it doesn't fit. In
+     * PackedForward mode the tag is written once per flushed batch, so only timestamp and data are
+     * serialized.
+     */
+    private boolean append(Event event) {
+        int start = pendings.position();
+        boolean entry = packedForward != null;
+        try {
+            boolean packed = packer.pack(event, entry);
+            while (!packed && growBuffer(pendings.capacity() + 1)) {
+                packed = packer.pack(event, entry);
+            }
+            while (!packed && pendings.position() > 0 && makeRoom(event)) {
+                start = pendings.position();
+                packed = packer.pack(event, entry);
+            }
+            if (!packed) {
+                if (pendings.position() == 0) {
+                    LOG.error("Log data larger than remaining buffer size {}", pendings.remaining());
+                }
                 return false;
             }
+        } catch (IOException e) {
+            LOG.error("Cannot serialize event: " + event, e);
+            return false;
+        }
+        if (entry) {
+            packedForward.add(event.tag, start, pendings.position());
         }
-        pendings.put(bytes);
+        return true;
+    }
 
-        // suppress reconnection burst
-        if (!reconnector.enableReconnection(System.currentTimeMillis())) {
+    /**
+     * Makes room in the full pending buffer as the overflow policy says, and returns false if the event has
+     * to be dropped instead. An enabled spill buffer takes the buffered events before any is dropped.
+     */
+    private boolean makeRoom(Event event) throws IOException {
+        switch (overflowPolicy) {
+        case BLOCK:
+            long waitDeadline = blockTimeoutMillis > 0 ? System.currentTimeMillis() + blockTimeoutMillis
+                    : Long.MAX_VALUE;
+            if (flushBuffer(waitDeadline) || spillBuffer()) {
+                return true;
+            }
+            if (System.currentTimeMillis() >= waitDeadline) {
+                LOG.debug("Dropped {}: the buffer of {} wasn't written within {} ms", event, name,
+                        blockTimeoutMillis);
+                metrics.blockTimedOut();
+            }
+            return false;
+        case DROP_OLDEST:
+            if (spillBuffer()) {
+                return true;
+            }
+            // don't evict anything for an event which wouldn't fit anyway
+            int size = measure(event, packedForward != null, pendings.capacity() - outgoingMark);
+            if (size < 0) {
+                LOG.error("Log data larger than the buffer of {} which isn't being written", name);
+                return false;
+            }
+            int evicted = evictOldest(Math.max(size - pendings.remaining(),
+                    pendings.capacity() / EVICTION_FRACTION));
+            if (evicted == 0) {
+                return false;
+            }
+            LOG.debug("Evicted {} events from the buffer of {}", evicted, name);
+            metrics.eventsEvicted(evicted);
+            metrics.pendingBytes(pendings.position());
             return true;
+        case CALLBACK:
+            if (spillBuffer()) {
+                return true;
+            }
+            try {
+                // the event may be a slot of AsyncSender, which is reused once this returns
+                errorHandler.handleBufferOverflow(event.copy());
+            } catch (Exception handlerException) {
+                LOG.warn("ErrorHandler.handleBufferOverflow failed", handlerException);
+            }
+            return false;
+        default:
+            return spillBuffer();
         }
+    }
 
-        // send pending data
-        flush();
+    /**
+     * Returns the serialized size of the event, or -1 if it's larger than <code>limit</code> bytes.
+     */
+    private int measure(Event event, boolean entry, int limit) throws IOException {
+        int capacity = scratch != null ? scratch.capacity() : 4096;
+        while (true) {
+            if (scratch == null || scratch.capacity() < capacity) {
+                scratch = ByteBuffer.allocate(capacity);
+                scratchPacker = new ByteBufferPacker(msgpack, scratch, packer.tags);
+            }
+            scratch.clear();
+            if (scratchPacker.pack(event, entry)) {
+                return scratch.position() <= limit ? scratch.position() : -1;
+            }
+            if (capacity >= limit) {
+                return -1;
+            }
+            capacity = Math.min(capacity * 2, limit);
+        }
+    }
 
-        return true;
+    /**
+     * Removes the oldest buffered events which aren't being written, at least <code>minBytes</code> of them
+     * as far as there are, and returns how many were removed.
+     */
+    private int evictOldest(int minBytes) {
+        // the part before the mark is being written
+        int from = outgoingMark;
+        int end = pendings.position();
+        ByteBuffer entries = pendings.duplicate();
+        entries.position(from);
+        entries.limit(end);
+        BufferUnpacker unpacker = msgpack.createBufferUnpacker(entries);
+        int len = 0;
+        int count = 0;
+        try {
+            while (len < minBytes && from + len < end) {
+                unpacker.skip();
+                len = unpacker.getReadByteCount();
+                count++;
+                if (packedForward != null) {
+                    packedForward.evictOldest(from + len);
+                }
+            }
+        } catch (IOException e) {
+            // the buffer only holds complete values
+            throw new IllegalStateException(e);
+        }
+        if (len > 0) {
+            ByteBuffer rest = pendings.duplicate();
+            rest.position(from + len);
+            rest.limit(end);
+            ByteBuffer target = pendings.duplicate();
+            target.position(from);
+            target.put(rest);
+            pendings.position(end - len);
+            if (packedForward != null) {
+                packedForward.evicted(len);
+            }
+        }
+        return count;
     }
 
+    /**
+     * Writes the pending data, waiting until the socket has taken all of it.
+     */
     @Override
-    public synchronized void flush() {
+    public void flush() {
+        lock.lock();
+        try {
+            flush(true);
+            metrics.pendingBytes(pendings.position());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void flush(boolean blocking) {
+        flush(blocking, Long.MAX_VALUE);
+    }
+
+    /**
+     * Writes the pending data. Unless <code>blocking</code>, this writes only what the socket takes right
+     * away and leaves the rest to later calls; if blocking, it stops waiting for the socket at
+     * <code>waitDeadline</code> and leaves the rest likewise.
+     */
+    private void flush(boolean blocking, long waitDeadline) {
+        unflushedEvents = 0;
         try {
             // check whether connection is established or not
             reconnect();
-            // write data
-            out.write(getBuffer());
-            out.flush();
-            clearBuffer();
+            if (ackWindow != null) {
+                readAcks(0);
+                checkAckTimeout();
+            }
+
+            long deadline = System.currentTimeMillis() + timeout;
+            while (outgoing != null || prepareOutgoing(blocking)) {
+                // write data
+                long written = channel.write(outgoing, outgoingIndex, outgoing.length - outgoingIndex);
+                metrics.bytesSent(written);
+                while (outgoingIndex < outgoing.length && !outgoing[outgoingIndex].hasRemaining()) {
+                    outgoingIndex++;
+                }
+                if (outgoingIndex < outgoing.length) {
+                    if (!blocking) {
+                        break;
+                    }
+                    if (written > 0) {
+                        deadline = System.currentTimeMillis() + timeout;
+                    }
+                    long now = System.currentTimeMillis();
+                    long remaining = deadline - now;
+                    if (remaining <= 0) {
+                        throw new SocketTimeoutException("write timed out");
+                    }
+                    if (now >= waitDeadline) {
+                        break;
+                    }
+                    waitFor(SelectionKey.OP_WRITE, Math.min(remaining, waitDeadline - now));
+                    continue;
+                }
+                completeOutgoing();
+                if (!blocking) {
+                    break;
+                }
+            }
             reconnector.clearErrorHistory();
+            failing = false;
         } catch (IOException e) {
             try {
                 errorHandler.handleNetworkError(e);
@@ -204,21 +622,678 @@ public class RawSocketSender implements Sender {
                 LOG.warn("ErrorHandler.handleNetworkError failed", handlerException);
             }
             LOG.error(this.getClass().getName(), "flush", e);
-            reconnector.addErrorHistory(System.currentTimeMillis());
-            close();
+            long now = System.currentTimeMillis();
+            reconnector.addErrorHistory(now);
+            failing = true;
+            metrics.flushFailed(now);
+            closeSocket();
+        }
+    }
+
+    /**
+     * Sets up {@link #outgoing} with the pending data, and returns false if there's nothing to write.
+     */
+    private boolean prepareOutgoing(boolean blocking) throws IOException {
+        if (spill != null && !spill.isEmpty()) {
+            // what was spilled is older than anything buffered
+            setOutgoing(new ByteBuffer[] { spill.head() }, 0);
+            replaying = true;
+            return true;
+        }
+        if (pendings.position() == 0) {
+            return false;
+        }
+
+        List<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+        int mark = 0;
+        if (ackWindow != null) {
+            if (!prepareChunks(buffers, blocking)) {
+                return false;
+            }
+        } else if (packedForward != null) {
+            packedForward.writeTo(buffers, pendings);
+            packedForward.seal();
+            mark = pendings.position();
+        } else {
+            ByteBuffer buffer = pendings.duplicate();
+            buffer.flip();
+            buffers.add(buffer);
+            mark = pendings.position();
+        }
+        setOutgoing(buffers.toArray(new ByteBuffer[buffers.size()]), mark);
+        return true;
+    }
+
+    /**
+     * Starts writing the buffers; <code>mark</code> is the end of the part of the pending buffer among them.
+     */
+    private void setOutgoing(ByteBuffer[] buffers, int mark) {
+        outgoing = buffers;
+        outgoingIndex = 0;
+        outgoingMark = mark;
+        outgoingStartNanos = System.nanoTime();
+    }
+
+    /**
+     * Discards the part of the pending buffer which has been written.
+     */
+    private void completeOutgoing() {
+        outgoing = null;
+        metrics.flushed(System.nanoTime() - outgoingStartNanos);
+        if (replaying) {
+            replaying = false;
+            try {
+                spill.removeHead();
+            } catch (IOException e) {
+                LOG.warn("Cannot record the sent spill segment of " + name, e);
+            }
+            return;
+        }
+        if (outgoingMark == 0) {
+            return;
+        }
+        if (outgoingMark == pendings.position()) {
+            clearBuffer();
+        } else {
+            pendings.limit(pendings.position());
+            pendings.position(outgoingMark);
+            pendings.compact();
+            if (packedForward != null) {
+                packedForward.consume(outgoingMark);
+            }
+        }
+        outgoingMark = 0;
+    }
+
+    /**
+     * Moves the pending entries into chunks to send with the <code>chunk</code> option. Once the window is
+     * full, this waits for acks of earlier chunks if <code>blocking</code>, and fails when the oldest one
+     * isn't acknowledged within the ack timeout.
+     */
+    private boolean prepareChunks(List<ByteBuffer> buffers, boolean blocking) throws IOException {
+        while (ackWindow.isFull()) {
+            if (!blocking) {
+                return false;
+            }
+            readAcks(ackWindow.remaining(System.currentTimeMillis()));
+            checkAckTimeout();
+        }
+
+        long now = System.currentTimeMillis();
+        List<ByteBuffer> message = new ArrayList<ByteBuffer>();
+        for (Map.Entry<String, List<PackedForward.Run>> group : packedForward.groupByTag().entrySet()) {
+            String chunkId = ackWindow.nextChunkId();
+            message.clear();
+            packedForward.writeMessage(message, pendings, group.getKey(), group.getValue(), chunkId);
+            AckWindow.Chunk chunk = new AckWindow.Chunk(chunkId, toByteArray(message));
+            ackWindow.add(chunk, now);
+            buffers.add(ByteBuffer.wrap(chunk.bytes));
         }
+        // the chunks are kept by the window until they're acknowledged
+        clearBuffer();
+        return true;
     }
 
-    synchronized byte[] getBuffer() {
-        int len = pendings.position();
-        pendings.position(0);
-        byte[] ret = new byte[len];
-        pendings.get(ret, 0, len);
-        return ret;
+    /**
+     * Moves the buffered events into the spill buffer, if there's one. They're written as complete
+     * messages, so that they can be replayed as they are.
+     */
+    private boolean spillBuffer() {
+        if (spill == null || outgoing != null) {
+            return false;
+        }
+        List<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+        try {
+            if (packedForward != null) {
+                packedForward.writeTo(buffers, pendings);
+            } else {
+                ByteBuffer buffer = pendings.duplicate();
+                buffer.flip();
+                buffers.add(buffer);
+            }
+            if (!spill.append(buffers)) {
+                LOG.error("Spill buffer of {} is full", name);
+                return false;
+            }
+        } catch (IOException e) {
+            LOG.error("Cannot spill logs of " + name, e);
+            return false;
+        }
+        LOG.debug("Spilled {} bytes of {}", pendings.position(), name);
+        clearBuffer();
+        return true;
+    }
+
+    private static byte[] toByteArray(List<ByteBuffer> buffers) {
+        int size = 0;
+        for (ByteBuffer buffer : buffers) {
+            size += buffer.remaining();
+        }
+        byte[] bytes = new byte[size];
+        int offset = 0;
+        for (ByteBuffer buffer : buffers) {
+            int len = buffer.remaining();
+            buffer.duplicate().get(bytes, offset, len);
+            offset += len;
+        }
+        return bytes;
+    }
+
+    private void resendChunks() {
+        ackWindow.resetResponses();
+        if (ackWindow.isEmpty()) {
+            return;
+        }
+        LOG.debug("Resending {} unacknowledged chunks", ackWindow.size());
+        long now = System.currentTimeMillis();
+        List<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+        for (AckWindow.Chunk chunk : ackWindow.chunks()) {
+            chunk.sentAt = now;
+            buffers.add(ByteBuffer.wrap(chunk.bytes));
+        }
+        setOutgoing(buffers.toArray(new ByteBuffer[buffers.size()]), 0);
+    }
+
+    private void checkAckTimeout() throws IOException {
+        if (!ackWindow.isEmpty() && ackWindow.remaining(System.currentTimeMillis()) <= 0) {
+            throw new IOException(String.format("No ack within %d ms", ackWindow.getAckTimeout()));
+        }
+    }
+
+    private void waitForAcks() throws IOException {
+        long remaining;
+        while (!ackWindow.isEmpty() && (remaining = ackWindow.remaining(System.currentTimeMillis())) > 0) {
+            readAcks(remaining);
+        }
+    }
+
+    /**
+     * Reads acks which have arrived. If <code>wait</code> is positive, waits at most that many
+     * milliseconds for the first one.
+     */
+    private void readAcks(long wait) throws IOException {
+        if (wait > 0 && !waitFor(SelectionKey.OP_READ, wait)) {
+            return;
+        }
+        int len;
+        while ((len = channel.read(ackReadBuffer)) > 0) {
+            ackWindow.received(ackReadBuffer.array(), 0, len);
+            ackReadBuffer.clear();
+        }
+        if (len < 0) {
+            throw new EOFException("Connection closed by " + host + ":" + port);
+        }
+    }
+
+    // static, so that it doesn't keep the sender alive
+    private static final class ScheduledFlush extends FlushScheduler.Task<RawSocketSender> {
+
+        ScheduledFlush(RawSocketSender sender) {
+            super(sender);
+        }
+
+        @Override
+        void run(RawSocketSender sender) {
+            try {
+                sender.flushScheduled();
+            } catch (RuntimeException e) {
+                LOG.error("Background flush failed", e);
+            }
+        }
+    }
+
+    /**
+     * Run by the background flush: writes what is buffered, and resumes a write the socket couldn't take
+     * at once. It connects first if needed and the reconnector allows it, so that events are written within
+     * the maximum delay of the flush policy also after a failure. It skips a round while another thread
+     * holds the lock, instead of waiting for it.
+     */
+    private void flushScheduled() {
+        if (!lock.tryLock()) {
+            return;
+        }
+        try {
+            if (flushTask == null
+                    || (pendings.position() == 0 && outgoing == null && (spill == null || spill.isEmpty()))) {
+                return;
+            }
+            // suppress reconnection burst
+            if (reconnector.enableReconnection(System.currentTimeMillis())) {
+                flush(false);
+                metrics.pendingBytes(pendings.position());
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns true if the last attempt to send failed and the reconnector is holding off reconnection, or
+     * about to retry. It doesn't wait for the lock.
+     */
+    boolean isFailing() {
+        return failing;
+    }
+
+    /**
+     * Returns true if events have been buffered since the last write. It doesn't wait for the lock.
+     */
+    boolean hasUnflushedEvents() {
+        return unflushedEvents > 0;
+    }
+
+    /**
+     * Returns true if the reconnector would let this sender try to connect now. Returns false without
+     * waiting while another thread holds the lock, which may be connecting already.
+     */
+    boolean isReconnectable(long now) {
+        if (!lock.tryLock()) {
+            return false;
+        }
+        try {
+            return reconnector.enableReconnection(now);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int getPendingBytes() {
+        lock.lock();
+        try {
+            return pendings.position();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Moves the buffered events to <code>target</code>, which has to be in the same mode. Returns false,
+     * moving nothing, if they're being written or don't fit into the buffer of <code>target</code>. Callers
+     * must not move events between two senders in both directions at once, as each would wait for the
+     * other's lock.
+     */
+    boolean moveTo(RawSocketSender target) {
+        lock.lock();
+        target.lock.lock();
+        try {
+            if ((packedForward == null) != (target.packedForward == null)) {
+                throw new IllegalStateException("Cannot move events between senders of different modes");
+            }
+            int len = pendings.position();
+            if (len == 0) {
+                return true;
+            }
+            if (outgoing != null
+                    || (target.pendings.remaining() < len && !target.growBuffer(target.pendings.position() + len))) {
+                return false;
+            }
+            int offset = target.pendings.position();
+            ByteBuffer moved = pendings.duplicate();
+            moved.flip();
+            target.pendings.put(moved);
+            if (packedForward != null) {
+                packedForward.copyTo(target.packedForward, offset);
+            }
+            clearBuffer();
+            metrics.pendingBytes(pendings.position());
+            target.metrics.pendingBytes(target.pendings.position());
+            return true;
+        } finally {
+            target.lock.unlock();
+            lock.unlock();
+        }
+    }
+
+    byte[] getBuffer() {
+        lock.lock();
+        try {
+            int len = pendings.position();
+            pendings.position(0);
+            byte[] ret = new byte[len];
+            pendings.get(ret, 0, len);
+            return ret;
+        } finally {
+            lock.unlock();
+        }
     }
 
     private void clearBuffer() {
+        int used = pendings.position();
         pendings.clear();
+        if (packedForward != null) {
+            packedForward.clear();
+        }
+        // give back a buffer grown for a burst once much less is buffered again
+        if (bufferPool != null && used < pendings.capacity() / 4
+                && pendings.capacity() > DirectBufferPool.MIN_SEGMENT_SIZE) {
+            replaceBuffer(bufferPool.acquire(DirectBufferPool.segmentSize(used * 2, bufferCapacity)));
+        }
+    }
+
+    /**
+     * Replaces the pooled pending buffer with a larger one of at least <code>minCapacity</code> bytes, up
+     * to the buffer capacity. Returns false if it can't grow, or if it's being written.
+     */
+    private boolean growBuffer(int minCapacity) {
+        if (bufferPool == null || outgoing != null || pendings.capacity() >= bufferCapacity
+                || minCapacity > bufferCapacity) {
+            return false;
+        }
+        replaceBuffer(bufferPool.acquire(DirectBufferPool.segmentSize(minCapacity, bufferCapacity)));
+        return true;
+    }
+
+    /**
+     * Copies the pending data into <code>buffer</code> and uses it from now on, giving the old buffer back
+     * to the pool. Nothing may refer to the old buffer anymore, as it's reused by other senders.
+     */
+    private void replaceBuffer(ByteBuffer buffer) {
+        ByteBuffer old = pendings;
+        old.flip();
+        buffer.put(old);
+        pendings = buffer;
+        packer = new ByteBufferPacker(msgpack, buffer, packer.tags);
+        if (bufferPool != null && old.isDirect()) {
+            bufferPool.release(old);
+        }
+    }
+
+    /**
+     * Takes the pending buffer from <code>bufferPool</code>, or from the heap if it's null. A pooled buffer
+     * starts at {@link DirectBufferPool#MIN_SEGMENT_SIZE} and grows on demand up to the buffer capacity, so
+     * an idle sender holds little memory; since it's direct, writing it to the socket needs no copy. The
+     * buffer can only be changed while no events are buffered.
+     */
+    public void setBufferPool(DirectBufferPool bufferPool) {
+        lock.lock();
+        try {
+            if (pendings.position() > 0 || outgoing != null) {
+                throw new IllegalStateException("Cannot change the buffer while events are buffered");
+            }
+            if (this.bufferPool != null) {
+                this.bufferPool.release(pendings);
+            }
+            this.bufferPool = bufferPool;
+            pendings = bufferPool != null ? bufferPool.acquire(DirectBufferPool.segmentSize(0, bufferCapacity))
+                    : ByteBuffer.allocate(bufferCapacity);
+            packer = new ByteBufferPacker(msgpack, pendings, packer.tags);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public DirectBufferPool getBufferPool() {
+        lock.lock();
+        try {
+            return bufferPool;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sets when emitted events are written. With the default {@link ImmediateFlushPolicy} each emit
+     * writes right away; a {@link ThresholdFlushPolicy} batches events into fewer, larger writes, and a
+     * background flush writes what is left after at most {@link FlushPolicy#getMaxDelayMillis()}.
+     */
+    public void setFlushPolicy(FlushPolicy flushPolicy) {
+        lock.lock();
+        try {
+            if (flushPolicy == null) {
+                throw new IllegalArgumentException("flushPolicy is null");
+            }
+            cancelFlushTask();
+            this.flushPolicy = flushPolicy;
+            if (flushPolicy.getMaxDelayMillis() > 0) {
+                flushTask = FlushScheduler.schedule(new ScheduledFlush(this), flushPolicy.getMaxDelayMillis());
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public FlushPolicy getFlushPolicy() {
+        lock.lock();
+        try {
+            return flushPolicy;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sets what happens to an event which doesn't fit into the full buffer. With {@link OverflowPolicy#BLOCK},
+     * the default, the emitting thread writes the buffer as long as the writes make progress; use
+     * {@link #setOverflowPolicy(OverflowPolicy, long)} to bound the wait. {@link OverflowPolicy#CALLBACK}
+     * calls the error handler while the sender is locked, so the handler must not emit to it.
+     */
+    public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        setOverflowPolicy(overflowPolicy, 0);
+    }
+
+    /**
+     * Sets the overflow policy and, for {@link OverflowPolicy#BLOCK}, how long the emitting thread may wait
+     * for the buffer to be written before the event is dropped; 0 waits as long as the writes make progress.
+     * Connecting and waiting for acks aren't bounded by it, but by the socket timeout.
+     */
+    public void setOverflowPolicy(OverflowPolicy overflowPolicy, long blockTimeoutMillis) {
+        if (overflowPolicy == null) {
+            throw new IllegalArgumentException("overflowPolicy is null");
+        }
+        if (blockTimeoutMillis < 0) {
+            throw new IllegalArgumentException("blockTimeoutMillis must not be negative: " + blockTimeoutMillis);
+        }
+        lock.lock();
+        try {
+            this.overflowPolicy = overflowPolicy;
+            this.blockTimeoutMillis = blockTimeoutMillis;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        lock.lock();
+        try {
+            return overflowPolicy;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Switches to the PackedForward mode of the forward protocol, in which each flush sends one
+     * <code>[tag, entries]</code> message per distinct tag instead of one <code>[tag, time, record]</code>
+     * message per event. Events of the same tag keep their order, but events of different tags may be
+     * reordered. This pays off when several events are flushed at once, e.g. with {@link AsyncSender}.
+     * The mode can only be changed while the buffer is empty.
+     */
+    public void setPackedForward(boolean enabled) {
+        lock.lock();
+        try {
+            if (pendings.position() > 0) {
+                throw new IllegalStateException("Cannot change the mode while events are buffered");
+            }
+            if (!enabled && ackWindow != null) {
+                throw new IllegalStateException("Acks require the PackedForward mode");
+            }
+            packedForward = enabled ? new PackedForward(msgpack, packer.tags) : null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isPackedForward() {
+        lock.lock();
+        try {
+            return packedForward != null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Switches to the CompressedPackedForward mode of the forward protocol, which is the PackedForward mode
+     * with the entries of each tag gzipped. Entries of a tag whose total size is less than
+     * <code>minBatchSize</code> bytes are sent uncompressed, since gzip hardly shrinks them.
+     *
+     * @param level a compression level of {@link java.util.zip.Deflater}, from 0 to 9, or -1 for the default
+     * @param minBatchSize the minimum size of a tag's entries to compress, in bytes
+     */
+    public void enableCompression(int level, int minBatchSize) {
+        lock.lock();
+        try {
+            if (packedForward == null) {
+                setPackedForward(true);
+            }
+            packedForward.enableCompression(level, minBatchSize);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void disableCompression() {
+        lock.lock();
+        try {
+            if (packedForward != null) {
+                packedForward.disableCompression();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isCompressed() {
+        lock.lock();
+        try {
+            return packedForward != null && packedForward.isCompressed();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Enables at-least-once delivery. Each flushed PackedForward message carries a <code>chunk</code> option
+     * and is kept until fluentd acknowledges it. Unacknowledged chunks are sent again after reconnecting,
+     * so fluentd may receive some events twice.
+     *
+     * @param ackTimeout milliseconds to wait for an ack before the connection is considered broken
+     * @param maxInFlight the maximum number of unacknowledged chunks before flushing waits for acks
+     */
+    public void enableAck(int ackTimeout, int maxInFlight) {
+        lock.lock();
+        try {
+            if (ackWindow != null && !ackWindow.isEmpty()) {
+                throw new IllegalStateException("Cannot change the ack settings while chunks are in flight");
+            }
+            if (spill != null) {
+                throw new IllegalStateException("Acks can't be used with a spill buffer");
+            }
+            if (packedForward == null) {
+                setPackedForward(true);
+            }
+            ackWindow = new AckWindow(msgpack, ackTimeout, maxInFlight);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void disableAck() {
+        lock.lock();
+        try {
+            if (ackWindow != null && !ackWindow.isEmpty()) {
+                throw new IllegalStateException("Cannot disable acks while chunks are in flight");
+            }
+            ackWindow = null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isAckEnabled() {
+        lock.lock();
+        try {
+            return ackWindow != null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int getUnacknowledgedChunkCount() {
+        lock.lock();
+        try {
+            return ackWindow != null ? ackWindow.size() : 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Enables a spill buffer in <code>directory</code>. When the buffer is full and fluentd can't be reached,
+     * the buffered events are appended to segment files there instead of being dropped, and they're sent
+     * first after reconnecting. What is still buffered on {@link #close()} is spilled as well, and spilled
+     * events left in the directory by an earlier process are sent too. Each sender needs a directory of
+     * its own. Spilling can't be combined with acks.
+     *
+     * @param maxSize the maximum number of bytes to spill; events are dropped beyond it
+     * @param segmentSize the size in bytes beyond which a new segment file is started
+     */
+    public void enableSpill(File directory, long maxSize, int segmentSize) throws IOException {
+        lock.lock();
+        try {
+            if (ackWindow != null) {
+                throw new IllegalStateException("Acks can't be used with a spill buffer");
+            }
+            if (spill != null) {
+                throw new IllegalStateException("Spill buffer is already enabled");
+            }
+            spill = new SpillBuffer(directory, maxSize, segmentSize);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Disables the spill buffer. Spilled events which haven't been sent yet are left in its directory.
+     */
+    public void disableSpill() {
+        lock.lock();
+        try {
+            if (spill != null) {
+                if (replaying) {
+                    closeSocket();
+                }
+                spill.close();
+                spill = null;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isSpillEnabled() {
+        lock.lock();
+        try {
+            return spill != null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long getSpilledBytes() {
+        lock.lock();
+        try {
+            return spill != null ? spill.size() : 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the metrics of this sender, which are also registered as an MXBean until it's closed.
+     */
+    public SenderMetrics getMetrics() {
+        return metrics;
     }
 
     @Override
@@ -233,7 +1308,8 @@ public class RawSocketSender implements Sender {
 
     @Override
     public boolean isConnected() {
-        return socket != null && !socket.isClosed() && socket.isConnected() && !socket.isOutputShutdown();
+        SocketChannel channel = this.channel;
+        return channel != null && channel.isOpen() && channel.isConnected();
     }
 
     @Override
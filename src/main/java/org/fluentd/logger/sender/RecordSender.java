@@ -0,0 +1,35 @@
+//
+// A Structured Logger for Fluent
+//
+// Copyright (C) 2011 - 2013 Muga Nishizawa
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//
+package org.fluentd.logger.sender;
+
+import java.util.Map;
+
+/**
+ * A {@link Sender} which takes records already encoded as {@link EncodedRecord}, without decoding them into
+ * maps, and times with nanoseconds. The record may be reused by the caller once <code>emit</code> returns.
+ */
+public interface RecordSender extends Sender {
+    boolean emit(String tag, long timestamp, EncodedRecord record);
+
+    /**
+     * Emits the event with an EventTime of <code>timestamp</code> seconds and <code>nanos</code> nanoseconds.
+     */
+    boolean emit(String tag, long timestamp, int nanos, Map<String, Object> data);
+
+    boolean emit(String tag, long timestamp, int nanos, EncodedRecord record);
+}
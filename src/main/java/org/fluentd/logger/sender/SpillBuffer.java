@@ -0,0 +1,303 @@
+//
+// A Structured Logger for Fluent
+//
+// Copyright (C) 2011 - 2013 Muga Nishizawa
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//
+package org.fluentd.logger.sender;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.msgpack.MessagePack;
+import org.msgpack.MessageTypeException;
+import org.msgpack.unpacker.BufferUnpacker;
+
+/**
+ * Messages which couldn't be sent, kept in append-only segment files in a directory. Segments are written
+ * in order and read back memory-mapped, oldest first; a segment is deleted once it has been sent. Segments
+ * left by an earlier process are picked up, so spilled messages survive a restart.
+ * <p>
+ * A sent segment which can't be deleted yet, as on platforms which don't delete files that are still
+ * mapped, is recorded as sent in a head file and deleted later, so that it isn't sent again after a
+ * restart.
+ */
+class SpillBuffer {
+
+    private static final String PREFIX = "spill-";
+
+    private static final String SUFFIX = ".seg";
+
+    private static final String HEAD = "spill.head";
+
+    private final File directory;
+
+    private final long maxSize;
+
+    private final int segmentSize;
+
+    private final LinkedList<File> segments = new LinkedList<File>();
+
+    /** Segments which have been sent, but couldn't be deleted yet. */
+    private final List<File> sent = new ArrayList<File>();
+
+    private long size;
+
+    private long nextSequence;
+
+    private FileChannel writer;
+
+    private long writerSize;
+
+    SpillBuffer(File directory, long maxSize, int segmentSize) throws IOException {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize must be positive: " + maxSize);
+        }
+        if (segmentSize <= 0) {
+            throw new IllegalArgumentException("segmentSize must be positive: " + segmentSize);
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        this.directory = directory;
+        this.maxSize = maxSize;
+        this.segmentSize = segmentSize;
+
+        // pick up the segments of an earlier process
+        List<Long> sequences = new ArrayList<Long>();
+        String[] names = directory.list();
+        if (names != null) {
+            for (String name : names) {
+                if (name.startsWith(PREFIX) && name.endsWith(SUFFIX)) {
+                    try {
+                        sequences.add(sequenceOf(new File(directory, name)));
+                    } catch (NumberFormatException e) {
+                        // not ours
+                    }
+                }
+            }
+        }
+        Collections.sort(sequences);
+        long headSequence = readHead();
+        for (long sequence : sequences) {
+            File segment = segmentFile(sequence);
+            nextSequence = sequence + 1;
+            if (sequence < headSequence) {
+                sent.add(segment);
+            } else {
+                segments.add(segment);
+                size += segment.length();
+            }
+        }
+        if (!segments.isEmpty()) {
+            // the last write of an earlier process may have been cut off
+            File last = segments.getLast();
+            long length = last.length();
+            long complete = completeLength(last);
+            if (complete < length) {
+                truncate(last, complete);
+                size -= length - complete;
+            }
+            if (complete == 0) {
+                segments.removeLast();
+                sent.add(last);
+            }
+        }
+        deleteSent();
+    }
+
+    private long readHead() throws IOException {
+        File file = new File(directory, HEAD);
+        if (!file.exists()) {
+            return 0;
+        }
+        RandomAccessFile head = new RandomAccessFile(file, "r");
+        try {
+            return head.length() < 8 ? 0 : head.readLong();
+        } finally {
+            head.close();
+        }
+    }
+
+    private void writeHead(long sequence) throws IOException {
+        RandomAccessFile head = new RandomAccessFile(new File(directory, HEAD), "rw");
+        try {
+            head.writeLong(sequence);
+        } finally {
+            head.close();
+        }
+    }
+
+    /**
+     * Returns the length of the complete messages at the start of the segment.
+     */
+    private static long completeLength(File segment) throws IOException {
+        FileChannel channel = new FileInputStream(segment).getChannel();
+        ByteBuffer buffer;
+        try {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            channel.close();
+        }
+        BufferUnpacker unpacker = new MessagePack().createBufferUnpacker();
+        unpacker.wrap(buffer);
+        long complete = 0;
+        try {
+            while (complete < buffer.limit()) {
+                unpacker.skip();
+                complete = unpacker.getReadByteCount();
+            }
+        } catch (IOException e) {
+            // cut off within a message
+        } catch (MessageTypeException e) {
+            // garbage after the last message
+        }
+        return complete;
+    }
+
+    private static void truncate(File segment, long length) throws IOException {
+        FileChannel channel = new RandomAccessFile(segment, "rw").getChannel();
+        try {
+            channel.truncate(length);
+        } finally {
+            channel.close();
+        }
+    }
+
+    private File segmentFile(long sequence) {
+        return new File(directory, String.format("%s%016x%s", PREFIX, sequence, SUFFIX));
+    }
+
+    boolean isEmpty() {
+        return segments.isEmpty();
+    }
+
+    /**
+     * Returns the number of bytes spilled.
+     */
+    long size() {
+        return size;
+    }
+
+    int getSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * Appends the buffers to the last segment, starting a new one if it would grow beyond the segment
+     * size. Returns false, writing nothing, if the spilled data would exceed the maximum size.
+     */
+    boolean append(List<ByteBuffer> buffers) throws IOException {
+        long len = 0;
+        for (ByteBuffer buffer : buffers) {
+            len += buffer.remaining();
+        }
+        if (size + len > maxSize) {
+            return false;
+        }
+
+        if (writer != null && writerSize > 0 && writerSize + len > segmentSize) {
+            closeWriter();
+        }
+        if (writer == null) {
+            File segment = segmentFile(nextSequence++);
+            writer = new FileOutputStream(segment, true).getChannel();
+            writerSize = 0;
+            segments.add(segment);
+        }
+        ByteBuffer[] srcs = new ByteBuffer[buffers.size()];
+        for (int i = 0; i < srcs.length; i++) {
+            srcs[i] = buffers.get(i).duplicate();
+        }
+        long written = 0;
+        while (written < len) {
+            written += writer.write(srcs);
+        }
+        writerSize += len;
+        size += len;
+        return true;
+    }
+
+    /**
+     * Maps the oldest segment. Nothing is appended to it afterwards.
+     */
+    ByteBuffer head() throws IOException {
+        File segment = segments.getFirst();
+        if (segments.size() == 1) {
+            closeWriter();
+        }
+        FileChannel channel = new FileInputStream(segment).getChannel();
+        try {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Deletes the oldest segment once it has been sent, or records it as sent if it can't be deleted yet.
+     */
+    void removeHead() throws IOException {
+        File segment = segments.removeFirst();
+        size -= segment.length();
+        sent.add(segment);
+        deleteSent();
+        if (!sent.isEmpty()) {
+            writeHead(sequenceOf(segment) + 1);
+        }
+    }
+
+    private static long sequenceOf(File segment) {
+        String name = segment.getName();
+        return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()), 16);
+    }
+
+    private void deleteSent() {
+        for (Iterator<File> it = sent.iterator(); it.hasNext(); ) {
+            File segment = it.next();
+            if (segment.delete() || !segment.exists()) {
+                it.remove();
+            }
+        }
+        if (sent.isEmpty()) {
+            new File(directory, HEAD).delete();
+        }
+    }
+
+    void close() {
+        closeWriter();
+        deleteSent();
+    }
+
+    private void closeWriter() {
+        if (writer != null) {
+            try {
+                writer.close();
+            } catch (IOException e) { // ignore
+            } finally {
+                writer = null;
+            }
+        }
+    }
+}
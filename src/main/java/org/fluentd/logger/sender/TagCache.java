@@ -0,0 +1,88 @@
+//
+// A Structured Logger for Fluent
+//
+// Copyright (C) 2011 - 2013 Muga Nishizawa
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//
+package org.fluentd.logger.sender;
+
+/**
+ * A bounded cache of values derived from tags, such as a tag with the logger's prefix or its msgpack
+ * encoding, and likewise from record keys. Each tag has one slot picked by its hash, and a tag landing on
+ * an occupied slot evicts the entry there, so a handful of hot tags stay cached while any number of
+ * distinct tags only costs the slots. Entries are immutable, so threads can share a cache without
+ * locking; at worst two threads both compute a value.
+ */
+public abstract class TagCache<V> {
+
+    public static final int DEFAULT_SIZE = 256;
+
+    private static final class Entry<V> {
+        final String tag;
+
+        final V value;
+
+        Entry(String tag, V value) {
+            this.tag = tag;
+            this.value = value;
+        }
+    }
+
+    private final Entry<V>[] slots;
+
+    private final int mask;
+
+    public TagCache() {
+        this(DEFAULT_SIZE);
+    }
+
+    /**
+     * @param size the number of slots, rounded up to a power of two
+     */
+    @SuppressWarnings("unchecked")
+    public TagCache(int size) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("size must be positive: " + size);
+        }
+        int n = Integer.highestOneBit(size);
+        if (n < size) {
+            n <<= 1;
+        }
+        slots = new Entry[n];
+        mask = n - 1;
+    }
+
+    /**
+     * Returns the value of the tag; a null tag isn't cached, but computed each time.
+     */
+    public V get(String tag) {
+        if (tag == null) {
+            return compute(null);
+        }
+        int h = tag.hashCode();
+        int i = (h ^ (h >>> 16)) & mask;
+        Entry<V> entry = slots[i];
+        if (entry != null && (entry.tag == tag || entry.tag.equals(tag))) {
+            return entry.value;
+        }
+        V value = compute(tag);
+        slots[i] = new Entry<V>(tag, value);
+        return value;
+    }
+
+    /**
+     * Derives the value of a tag which isn't cached.
+     */
+    protected abstract V compute(String tag);
+}
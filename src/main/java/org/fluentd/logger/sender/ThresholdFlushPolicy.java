@@ -0,0 +1,83 @@
+//
+// A Structured Logger for Fluent
+//
+// Copyright (C) 2011 - 2013 Muga Nishizawa
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//
+package org.fluentd.logger.sender;
+
+/**
+ * Writes once <code>maxBytes</code> are pending or <code>maxEvents</code> have been buffered since the
+ * last write, and otherwise leaves the events to a background flush every <code>maxDelayMillis</code>.
+ */
+public class ThresholdFlushPolicy implements FlushPolicy {
+
+    public static final int DEFAULT_MAX_BYTES = 64 * 1024;
+
+    public static final int DEFAULT_MAX_EVENTS = 1000;
+
+    public static final long DEFAULT_MAX_DELAY_MILLIS = 10;
+
+    private final int maxBytes;
+
+    private final int maxEvents;
+
+    private final long maxDelayMillis;
+
+    public ThresholdFlushPolicy() {
+        this(DEFAULT_MAX_BYTES, DEFAULT_MAX_EVENTS, DEFAULT_MAX_DELAY_MILLIS);
+    }
+
+    /**
+     * @param maxBytes pending bytes which trigger a write
+     * @param maxEvents events buffered since the last write which trigger a write
+     * @param maxDelayMillis the interval of the background flush, 0 for none
+     */
+    public ThresholdFlushPolicy(int maxBytes, int maxEvents, long maxDelayMillis) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("maxBytes must be positive: " + maxBytes);
+        }
+        if (maxEvents <= 0) {
+            throw new IllegalArgumentException("maxEvents must be positive: " + maxEvents);
+        }
+        if (maxDelayMillis < 0) {
+            throw new IllegalArgumentException("maxDelayMillis must not be negative: " + maxDelayMillis);
+        }
+        this.maxBytes = maxBytes;
+        this.maxEvents = maxEvents;
+        this.maxDelayMillis = maxDelayMillis;
+    }
+
+    public boolean shouldFlush(int pendingBytes, int pendingEvents) {
+        return pendingBytes >= maxBytes || pendingEvents >= maxEvents;
+    }
+
+    public long getMaxDelayMillis() {
+        return maxDelayMillis;
+    }
+
+    public int getMaxBytes() {
+        return maxBytes;
+    }
+
+    public int getMaxEvents() {
+        return maxEvents;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ThresholdFlushPolicy(maxBytes=%d, maxEvents=%d, maxDelayMillis=%d)",
+                maxBytes, maxEvents, maxDelayMillis);
+    }
+}
@@ -0,0 +1,161 @@
+//
+// A Structured Logger for Fluent
+//
+// Copyright (C) 2011 - 2013 Muga Nishizawa
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//
+package org.fluentd.logger.sender;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.SocketAddress;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Sends events over a Unix domain socket to a fluentd or Fluent Bit on the same host, e.g. one with
+ * <code>&lt;source&gt; @type unix path /var/run/fluentd.sock &lt;/source&gt;</code>. This avoids the TCP
+ * stack and ephemeral ports of loopback connections; otherwise it behaves like {@link RawSocketSender}.
+ * Unix domain socket channels need Java 16 or later, and are looked up reflectively so that the library
+ * still runs on older versions.
+ */
+public class UnixSocketSender extends RawSocketSender {
+
+    /** The prefix of a host, e.g. <code>unix:///var/run/fluentd.sock</code>, which selects this sender. */
+    public static final String URI_PREFIX = "unix://";
+
+    private static final Method ADDRESS_OF;
+
+    private static final Method OPEN_CHANNEL;
+
+    private static final Object UNIX;
+
+    static {
+        Method addressOf = null;
+        Method openChannel = null;
+        Object unix = null;
+        try {
+            addressOf = Class.forName("java.net.UnixDomainSocketAddress").getMethod("of", String.class);
+            openChannel = SocketChannel.class.getMethod("open", Class.forName("java.net.ProtocolFamily"));
+            for (Object family : Class.forName("java.net.StandardProtocolFamily").getEnumConstants()) {
+                if ("UNIX".equals(((Enum<?>) family).name())) {
+                    unix = family;
+                }
+            }
+        } catch (ClassNotFoundException e) {
+            // before Java 16
+        } catch (NoSuchMethodException e) {
+            // before Java 16
+        }
+        if (addressOf == null || openChannel == null || unix == null) {
+            addressOf = null;
+            openChannel = null;
+            unix = null;
+        }
+        ADDRESS_OF = addressOf;
+        OPEN_CHANNEL = openChannel;
+        UNIX = unix;
+    }
+
+    private final String path;
+
+    private final SocketAddress address;
+
+    public UnixSocketSender(String path) {
+        this(path, 3 * 1000, 8 * 1024 * 1024);
+    }
+
+    public UnixSocketSender(String path, int timeout, int bufferCapacity) {
+        this(path, timeout, bufferCapacity, new ExponentialDelayReconnector());
+    }
+
+    public UnixSocketSender(String path, int timeout, int bufferCapacity, Reconnector reconnector) {
+        this(path, timeout, bufferCapacity, reconnector, null);
+    }
+
+    public UnixSocketSender(String path, int timeout, int bufferCapacity, Reconnector reconnector,
+            DirectBufferPool bufferPool) {
+        super(checkSupported(path), 0, timeout, bufferCapacity, reconnector, bufferPool);
+        this.path = path;
+        SocketAddress address;
+        try {
+            address = (SocketAddress) invoke(ADDRESS_OF, path);
+        } catch (IOException e) {
+            // unregisters the metrics and gives back the buffer which the super constructor took
+            close();
+            throw new IllegalArgumentException("Invalid socket path: " + path, e);
+        } catch (RuntimeException e) {
+            close();
+            throw e;
+        }
+        this.address = address;
+    }
+
+    private static String checkSupported(String path) {
+        if (!isSupported()) {
+            throw new UnsupportedOperationException("Unix domain sockets need Java 16 or later");
+        }
+        return path;
+    }
+
+    /**
+     * Returns whether the JVM supports Unix domain socket channels.
+     */
+    public static boolean isSupported() {
+        return ADDRESS_OF != null;
+    }
+
+    /**
+     * Returns the socket path of a host given as <code>unix://path</code>, or null for any other host.
+     */
+    public static String parsePath(String host) {
+        if (host == null || !host.startsWith(URI_PREFIX)) {
+            return null;
+        }
+        return host.substring(URI_PREFIX.length());
+    }
+
+    @Override
+    protected SocketChannel openChannel() throws IOException {
+        return (SocketChannel) invoke(OPEN_CHANNEL, UNIX);
+    }
+
+    @Override
+    protected SocketAddress getRemoteAddress() {
+        return address;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * Invokes a static method found in the static initializer.
+     */
+    private static Object invoke(Method method, Object arg) throws IOException {
+        try {
+            return method.invoke(null, arg);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        } catch (InvocationTargetException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+}
@@ -1,12 +1,26 @@
 package org.fluentd.logger;
 
+import org.fluentd.logger.metrics.SenderMetrics;
+import org.fluentd.logger.sender.MultiEndpointSender;
+import org.fluentd.logger.sender.NullSender;
+import org.fluentd.logger.sender.PooledSender;
+import org.fluentd.logger.sender.RawSocketSender;
+import org.fluentd.logger.sender.Sender;
 import org.junit.Before;
 import org.junit.Test;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 public class TestFluentLogFactory {
@@ -47,4 +61,98 @@ public class TestFluentLogFactory {
         Thread.sleep(1000);
         assertEquals(2, loggerFactory.getLoggers().size());
     }
+
+    @Test
+    public void testConcurrentGetLogger() throws Exception {
+        System.setProperty(Config.FLUENT_SENDER_CLASS, NullSender.class.getName());
+        try {
+            final int threads = 8;
+            final CountDownLatch start = new CountDownLatch(1);
+            final FluentLogger[] found = new FluentLogger[threads];
+            List<Thread> workers = new ArrayList<Thread>();
+            for (int t = 0; t < threads; t++) {
+                final int index = t;
+                Thread worker = new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            start.await();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                        for (int i = 0; i < 1000; i++) {
+                            FluentLogger logger = loggerFactory.getLogger("concurrent", "localhost", 24224);
+                            if (found[index] == null) {
+                                found[index] = logger;
+                            }
+                            assertTrue(found[index] == logger);
+                        }
+                    }
+                };
+                worker.start();
+                workers.add(worker);
+            }
+            start.countDown();
+            for (Thread worker : workers) {
+                worker.join();
+            }
+
+            // every thread got the same logger
+            for (FluentLogger logger : found) {
+                assertTrue(found[0] == logger);
+            }
+            assertEquals(1, loggerFactory.getLoggers().size());
+        } finally {
+            System.clearProperty(Config.FLUENT_SENDER_CLASS);
+        }
+    }
+
+    @Test
+    public void testMetricsUnregisteredOnceLoggerIsCollected() throws InterruptedException {
+        FluentLogger logger = loggerFactory.getLogger("collected", "localhost", 999);
+        ObjectName name = ((RawSocketSender) logger.getSender()).getMetrics().getObjectName();
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        assertTrue(server.isRegistered(name));
+
+        // the logger is never closed
+        logger = null;
+        awaitUnregistered(Collections.singletonList(name));
+    }
+
+    @Test
+    public void testMetricsOfEachConnectionUnregisteredOnceLoggerIsCollected() throws InterruptedException {
+        for (Class<?> senderClass : Arrays.asList(PooledSender.class, MultiEndpointSender.class)) {
+            System.setProperty(Config.FLUENT_SENDER_CLASS, senderClass.getName());
+            try {
+                // the logger is never closed
+                awaitUnregistered(metricsOfNewLogger());
+            } finally {
+                System.clearProperty(Config.FLUENT_SENDER_CLASS);
+            }
+        }
+    }
+
+    private List<ObjectName> metricsOfNewLogger() {
+        Sender sender = loggerFactory.getLogger("collected", "localhost", 999).getSender();
+        List<SenderMetrics> metrics = sender instanceof PooledSender ? ((PooledSender) sender).getMetrics()
+                : ((MultiEndpointSender) sender).getMetrics();
+        List<ObjectName> names = new ArrayList<ObjectName>();
+        for (SenderMetrics m : metrics) {
+            assertTrue(ManagementFactory.getPlatformMBeanServer().isRegistered(m.getObjectName()));
+            names.add(m.getObjectName());
+        }
+        return names;
+    }
+
+    private void awaitUnregistered(List<ObjectName> names) throws InterruptedException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (int i = 0; i < 50 && server.isRegistered(names.get(0)); i++) {
+            System.gc();
+            Thread.sleep(100);
+            loggerFactory.getLoggers();
+        }
+        for (ObjectName name : names) {
+            assertFalse(server.isRegistered(name));
+        }
+    }
 }
@@ -1,9 +1,14 @@
 package org.fluentd.logger;
 
 import org.fluentd.logger.errorhandler.ErrorHandler;
+import org.fluentd.logger.sampling.ChainedSampler;
+import org.fluentd.logger.sampling.RateLimitSampler;
+import org.fluentd.logger.sampling.Sampler;
+import org.fluentd.logger.sender.EncodedRecord;
 import org.fluentd.logger.sender.Event;
 import org.fluentd.logger.sender.ExponentialDelayReconnector;
 import org.fluentd.logger.sender.NullSender;
+import org.fluentd.logger.sender.RawSocketSender;
 import org.fluentd.logger.sender.Sender;
 import org.fluentd.logger.util.MockFluentd;
 import org.junit.Before;
@@ -18,6 +23,7 @@ import java.io.EOFException;
 import java.io.IOException;
 import java.net.Socket;
 import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -113,6 +119,327 @@ public class TestFluentLogger {
         assertEquals("testtag.test01", elist.get(1).tag);
     }
 
+    @Test
+    public void testRecordBuilder() throws Exception {
+        // start mock fluentd
+        int port = MockFluentd.randomPort();
+        String host = "localhost";
+        final List<Event> elist = new ArrayList<Event>();
+        MockFluentd fluentd = new MockFluentd(port, new MockFluentd.MockProcess() {
+            public void process(MessagePack msgpack, Socket socket) throws IOException {
+                BufferedInputStream in = new BufferedInputStream(socket.getInputStream());
+                try {
+                    Unpacker unpacker = msgpack.createUnpacker(in);
+                    while (true) {
+                        Event e = unpacker.read(Event.class);
+                        elist.add(e);
+                    }
+                } catch (EOFException e) {
+                    // ignore
+                }
+            }
+        });
+
+        FixedThreadManager threadManager = new FixedThreadManager(1);
+        threadManager.submit(fluentd);
+        fluentd.waitUntilReady();
+
+        // start loggers
+        FluentLogger logger = FluentLogger.getLogger("testtag", host, port);
+        assertTrue(logger.record("test01")
+                .put("latency", 12)
+                .put("negative", -70000L)
+                .put("ratio", 0.5)
+                .put("ok", true)
+                .put("name", "caf\u00e9")
+                .put("nothing", (String) null)
+                .emit());
+        assertTrue(logger.record("test02").timestamp(12345).put("big", Long.MAX_VALUE).emit());
+
+        // close loggers
+        logger.close();
+        Thread.sleep(2000);
+
+        // close mock fluentd
+        fluentd.close();
+
+        // wait for unpacking event data on fluentd
+        threadManager.join();
+
+        // check data
+        assertEquals(2, elist.size());
+        {
+            Event e = elist.get(0);
+            assertEquals("testtag.test01", e.tag);
+            assertEquals(6, e.data.size());
+            assertEquals(12L, e.data.get("latency"));
+            assertEquals(-70000L, e.data.get("negative"));
+            assertEquals(0.5, e.data.get("ratio"));
+            assertEquals(true, e.data.get("ok"));
+            assertEquals("caf\u00e9", e.data.get("name"));
+            assertTrue(e.data.containsKey("nothing"));
+            assertNull(e.data.get("nothing"));
+        }
+        {
+            Event e = elist.get(1);
+            assertEquals("testtag.test02", e.tag);
+            assertEquals(12345, e.timestamp);
+            assertEquals(Long.MAX_VALUE, e.data.get("big"));
+        }
+    }
+
+    @Test
+    public void testRecordBuilderWithMapSender() throws Exception {
+        // senders which only take maps get the record decoded
+        final List<Map<String, Object>> records = new ArrayList<Map<String, Object>>();
+        FluentLogger logger = new FluentLogger("testtag", new Sender() {
+            public boolean emit(String tag, Map<String, Object> data) {
+                return emit(tag, 0, data);
+            }
+
+            public boolean emit(String tag, long timestamp, Map<String, Object> data) {
+                records.add(data);
+                return true;
+            }
+
+            public void flush() {
+            }
+
+            public void close() {
+            }
+
+            public String getName() {
+                return "maps";
+            }
+
+            public boolean isConnected() {
+                return true;
+            }
+
+            public void setErrorHandler(ErrorHandler errorHandler) {
+            }
+
+            public void removeErrorHandler() {
+            }
+        }) {};
+        assertTrue(logger.record("test01").put("i", 1).put("list", Arrays.asList(1, 2)).emit());
+
+        assertEquals(1, records.size());
+        assertEquals(1L, records.get(0).get("i"));
+        assertEquals(Arrays.asList(1L, 2L), records.get(0).get("list"));
+    }
+
+    @Test
+    public void testEventTime() throws Exception {
+        // start mock fluentd
+        int port = MockFluentd.randomPort();
+        final List<Event> elist = new CopyOnWriteArrayList<Event>();
+        MockFluentd fluentd = new MockFluentd(port, new MockFluentd.MockProcess() {
+            public void process(MessagePack msgpack, Socket socket) throws IOException {
+                BufferedInputStream in = new BufferedInputStream(socket.getInputStream());
+                try {
+                    Unpacker unpacker = msgpack.createUnpacker(in);
+                    while (true) {
+                        elist.addAll(MockFluentd.readEvents(msgpack, unpacker));
+                    }
+                } catch (EOFException e) {
+                    // ignore
+                }
+            }
+        });
+        fluentd.start();
+        fluentd.waitUntilReady();
+
+        // start loggers; the mock reads EventTime in the PackedForward mode only
+        RawSocketSender sender = new RawSocketSender("localhost", port);
+        sender.setPackedForward(true);
+        FluentLogger logger = new FluentLogger("testtag", sender) {};
+        logger.setEventTimeEnabled(true);
+        long before = System.currentTimeMillis();
+        Map<String, Object> data = new HashMap<String, Object>();
+        data.put("k", "v");
+        assertTrue(logger.log("test01", data));
+        assertTrue(logger.log("test02", data, 12345, 678));
+        assertTrue(logger.record("test03").timestamp(12, 999999999).put("k", "v").emit());
+        assertTrue(logger.record("test04").put("k", "v").emit());
+        long after = System.currentTimeMillis();
+
+        // close loggers
+        logger.close();
+        Thread.sleep(1000);
+        fluentd.close();
+
+        // check data
+        assertEquals(4, elist.size());
+        for (Event e : elist) {
+            assertTrue(e.eventTime);
+            assertEquals("v", e.data.get("k"));
+        }
+        for (int i : new int[] { 0, 3 }) {
+            long millis = elist.get(i).timestamp * 1000 + elist.get(i).nanos / 1000000;
+            assertTrue(millis >= before - 2 && millis <= after + 2);
+        }
+        assertEquals(12345, elist.get(1).timestamp);
+        assertEquals(678, elist.get(1).nanos);
+        assertEquals(12, elist.get(2).timestamp);
+        assertEquals(999999999, elist.get(2).nanos);
+    }
+
+    @Test
+    public void testSampler() throws Exception {
+        final List<Map<String, Object>> records = new ArrayList<Map<String, Object>>();
+        FluentLogger logger = new FluentLogger("testtag", new NullSender("localhost", 24224, 3000, 1024) {
+            @Override
+            public boolean emit(String tag, Map<String, Object> data) {
+                records.add(data);
+                return true;
+            }
+
+            @Override
+            public boolean emit(String tag, long timestamp, EncodedRecord record) {
+                records.add(record.toMap());
+                return true;
+            }
+        }) {};
+
+        // every event stands for ten, the tag is limited to two events
+        logger.setSampler(new ChainedSampler(new Sampler() {
+            public int sample(String tag) {
+                return 10;
+            }
+        }, new RateLimitSampler(0.001, 2)));
+        Map<String, Object> data = new HashMap<String, Object>();
+        data.put("k", "v");
+        assertTrue(logger.log("test", data));
+        assertTrue(logger.record("test").put("k", "v").emit());
+        assertTrue(logger.log("test", data));
+        // a dropped record isn't even encoded, so the bean isn't looked at
+        assertTrue(logger.record("test").putBean(new NotAnnotated()).emit());
+
+        assertEquals(2, records.size());
+        assertEquals(10, ((Number) records.get(0).get(Sampler.SAMPLE_RATE_KEY)).intValue());
+        assertEquals(10L, records.get(1).get(Sampler.SAMPLE_RATE_KEY));
+        // the caller's map is left as it is
+        assertEquals(1, data.size());
+    }
+
+    @Test
+    public void testNullTag() throws Exception {
+        final List<String> tags = new ArrayList<String>();
+        FluentLogger logger = new FluentLogger("pre", new NullSender("localhost", 24224, 3000, 1024) {
+            @Override
+            public boolean emit(String tag, Map<String, Object> data) {
+                tags.add(tag);
+                return true;
+            }
+        }) {};
+        Map<String, Object> data = new HashMap<String, Object>();
+        data.put("k", "v");
+        assertTrue(logger.log(null, data));
+        assertTrue(logger.log(null, data));
+        assertEquals(Arrays.asList("pre.null", "pre.null"), tags);
+    }
+
+    @LogRecord
+    public static class Access {
+        public String getPath() {
+            return "/index.html";
+        }
+
+        public int getStatus() {
+            return 200;
+        }
+
+        public double getLatency() {
+            return 12.5;
+        }
+
+        public boolean isCached() {
+            return true;
+        }
+
+        @LogField("user_agent")
+        public String getUserAgent() {
+            return null;
+        }
+
+        @LogField(ignore = true)
+        public String getSecret() {
+            return "secret";
+        }
+
+        public List<Integer> getSizes() {
+            return Arrays.asList(1, 2);
+        }
+
+        public String notAProperty() {
+            return "x";
+        }
+    }
+
+    public static class NotAnnotated {
+        public int getValue() {
+            return 1;
+        }
+
+        @Override
+        public String toString() {
+            return "not annotated";
+        }
+    }
+
+    @Test
+    public void testLogBean() throws Exception {
+        final List<Map<String, Object>> records = new ArrayList<Map<String, Object>>();
+        final List<Long> timestamps = new ArrayList<Long>();
+        FluentLogger logger = new FluentLogger("testtag", new NullSender("localhost", 24224, 3000, 1024) {
+            @Override
+            public boolean emit(String tag, Map<String, Object> data) {
+                records.add(data);
+                return true;
+            }
+
+            @Override
+            public boolean emit(String tag, long timestamp, EncodedRecord record) {
+                records.add(record.toMap());
+                timestamps.add(timestamp);
+                return true;
+            }
+        }) {};
+
+        assertTrue(logger.log("test", (Object) new Access()));
+        assertTrue(logger.record("test").timestamp(1400000000L).putBean(new Access()).emit());
+        // a map is logged as it is
+        Map<String, Object> data = new HashMap<String, Object>();
+        data.put("k", "v");
+        assertTrue(logger.log("test", (Object) data));
+
+        assertEquals(3, records.size());
+        Map<String, Object> record = records.get(0);
+        assertEquals(new TreeSet<String>(Arrays.asList("cached", "latency", "path", "sizes", "status",
+                "user_agent")), record.keySet());
+        assertEquals("/index.html", record.get("path"));
+        assertEquals(200L, record.get("status"));
+        assertEquals(12.5, record.get("latency"));
+        assertEquals(true, record.get("cached"));
+        assertNull(record.get("user_agent"));
+        assertEquals(Arrays.asList(1L, 2L), record.get("sizes"));
+        assertEquals(record, records.get(1));
+        assertEquals(1400000000L, (long) timestamps.get(1));
+        assertSame(data, records.get(2));
+
+        // any other object is logged as its string
+        assertTrue(logger.log("test", new NotAnnotated()));
+        assertEquals(4, records.size());
+        assertEquals(Collections.singletonMap("message", "not annotated"), records.get(3));
+        try {
+            logger.record("test").putBean(new NotAnnotated());
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
     @SuppressWarnings("unchecked")
     @Test
     public void testNormal02() throws Exception {
@@ -319,7 +646,8 @@ public class TestFluentLogger {
         threadManager.submit(fluentd2);
         fluentd2.waitUntilReady();
 
-        TimeUnit.MILLISECONDS.sleep((long) (ExponentialDelayReconnector.WAIT_MILLIS * 1.5));
+        // the third connection error above suppresses reconnection for WAIT_MILLIS * 1.5 ^ 2
+        TimeUnit.MILLISECONDS.sleep((long) (ExponentialDelayReconnector.WAIT_MILLIS * 1.5 * 1.5));
         {
             Map<String, Object> data = new HashMap<String, Object>();
             data.put("k5", "v5");
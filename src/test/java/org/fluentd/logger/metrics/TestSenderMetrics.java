@@ -0,0 +1,92 @@
+package org.fluentd.logger.metrics;
+
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TestSenderMetrics {
+
+    @Test
+    public void testStripedCounter() throws Exception {
+        final StripedCounter counter = new StripedCounter();
+        final int count = 100000;
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 4; t++) {
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < count; i++) {
+                        counter.increment();
+                    }
+                }
+            };
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(4 * count, counter.get());
+    }
+
+    @Test
+    public void testLatencyHistogram() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getPercentile(50));
+        for (int i = 0; i < 98; i++) {
+            histogram.record(100);
+        }
+        histogram.record(3000);
+        histogram.record(70000);
+
+        assertEquals(100, histogram.getCount());
+        assertEquals(70000, histogram.getMax());
+        // 100us falls into [64, 128), 3000us into [2048, 4096)
+        assertEquals(128, histogram.getPercentile(50));
+        assertEquals(4096, histogram.getPercentile(99));
+        assertEquals(131072, histogram.getPercentile(100));
+        assertEquals(98, histogram.getBuckets()[7]);
+    }
+
+    @Test
+    public void testRegister() throws Exception {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        SenderMetrics metrics = new SenderMetrics(1024);
+        SenderMetrics other = new SenderMetrics(1024);
+        metrics.register("localhost_24224");
+        other.register("localhost_24224");
+        ObjectName name = metrics.getObjectName();
+        ObjectName otherName = other.getObjectName();
+        assertFalse(name.equals(otherName));
+
+        metrics.eventEmitted();
+        metrics.eventDropped();
+        metrics.pendingBytes(10);
+        assertEquals(1L, server.getAttribute(name, "EventsEmitted"));
+        assertEquals(1L, server.getAttribute(name, "EventsDropped"));
+        assertEquals(10, server.getAttribute(name, "PendingBytes"));
+        assertEquals(1024, server.getAttribute(name, "BufferCapacity"));
+
+        // a failure starts a backoff, which the next attempt to connect ends
+        metrics.flushFailed(1000);
+        metrics.connecting(1500);
+        assertEquals(1L, server.getAttribute(name, "ReconnectAttempts"));
+        assertEquals(500L, server.getAttribute(name, "BackoffMillis"));
+
+        metrics.unregister();
+        other.unregister();
+        assertNull(metrics.getObjectName());
+        assertFalse(server.isRegistered(name));
+        assertFalse(server.isRegistered(otherName));
+        assertTrue(name.getKeyProperty("name").contains("localhost_24224"));
+    }
+}
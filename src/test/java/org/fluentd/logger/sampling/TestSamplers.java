@@ -0,0 +1,66 @@
+package org.fluentd.logger.sampling;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestSamplers {
+
+    @Test
+    public void testRateLimitPerTag() throws Exception {
+        // a rate low enough that no token comes back during the test
+        RateLimitSampler sampler = new RateLimitSampler(0.001, 10);
+        sampler.setLimit("b", 0.001, 3);
+
+        int sentA = 0;
+        int sentB = 0;
+        for (int i = 0; i < 100; i++) {
+            sentA += sampler.sample("a");
+            sentB += sampler.sample("b");
+        }
+        assertEquals(10, sentA);
+        assertEquals(3, sentB);
+        assertEquals(187, sampler.getDropped());
+    }
+
+    @Test
+    public void testRateLimitRefills() throws Exception {
+        RateLimitSampler sampler = new RateLimitSampler(100, 1);
+        assertEquals(1, sampler.sample("a"));
+        assertEquals(0, sampler.sample("a"));
+        Thread.sleep(50);
+        assertEquals(1, sampler.sample("a"));
+    }
+
+    @Test
+    public void testProbabilistic() {
+        ProbabilisticSampler sampler = new ProbabilisticSampler(10);
+        sampler.setRate("all", 1);
+        int count = 100000;
+        int sent = 0;
+        for (int i = 0; i < count; i++) {
+            int rate = sampler.sample("some");
+            assertTrue(rate == 0 || rate == 10);
+            if (rate > 0) {
+                sent++;
+            }
+            assertEquals(1, sampler.sample("all"));
+        }
+        // one in ten, give or take
+        assertTrue(sent > count / 10 - 1000 && sent < count / 10 + 1000);
+    }
+
+    @Test
+    public void testChained() {
+        Sampler ten = new Sampler() {
+            public int sample(String tag) {
+                return 10;
+            }
+        };
+        RateLimitSampler limit = new RateLimitSampler(0.001, 1);
+        ChainedSampler sampler = new ChainedSampler(ten, limit);
+        assertEquals(10, sampler.sample("a"));
+        assertEquals(0, sampler.sample("a"));
+    }
+}
@@ -0,0 +1,243 @@
+package org.fluentd.logger.sender;
+
+import org.fluentd.logger.errorhandler.ErrorHandler;
+import org.fluentd.logger.util.MockFluentd;
+import org.junit.Test;
+import org.msgpack.MessagePack;
+import org.msgpack.unpacker.Unpacker;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestAsyncSender {
+
+    @Test
+    public void testNormal() throws Exception {
+        // start mock fluentd
+        int port = MockFluentd.randomPort();
+        final List<Event> elist = new CopyOnWriteArrayList<Event>();
+        MockFluentd fluentd = new MockFluentd(port, new MockFluentd.MockProcess() {
+            public void process(MessagePack msgpack, Socket socket) throws IOException {
+                BufferedInputStream in = new BufferedInputStream(socket.getInputStream());
+                try {
+                    Unpacker unpacker = msgpack.createUnpacker(in);
+                    while (true) {
+                        Event e = unpacker.read(Event.class);
+                        elist.add(e);
+                    }
+                } catch (EOFException e) {
+                    // ignore
+                }
+            }
+        });
+        fluentd.start();
+        fluentd.waitUntilReady();
+
+        // start senders
+        Sender sender = new AsyncSender("localhost", port);
+        int count = 10000;
+        for (int i = 0; i < count; i++) {
+            Map<String, Object> record = new HashMap<String, Object>();
+            record.put("i", i);
+            record.put("n", "name:" + i);
+            assertTrue(sender.emit("tag.async", record));
+        }
+
+        // close sender sockets after the queue is drained
+        sender.close();
+        assertFalse(sender.emit("tag.async", new HashMap<String, Object>()));
+
+        // wait for unpacking event data on fluentd
+        Thread.sleep(2000);
+
+        // close mock server sockets
+        fluentd.close();
+
+        // check data
+        assertEquals(count, elist.size());
+        for (int i = 0; i < count; i++) {
+            Event e = elist.get(i);
+            assertEquals("tag.async", e.tag);
+            assertEquals((long) i, e.data.get("i"));
+        }
+    }
+
+    @Test
+    public void testOverflowCallback() throws Exception {
+        // start mock fluentd which never reads, so that the I/O thread gets stuck on writing
+        int port = MockFluentd.randomPort();
+        final CountDownLatch finished = new CountDownLatch(1);
+        MockFluentd fluentd = new MockFluentd(port, new MockFluentd.MockProcess() {
+            public void process(MessagePack msgpack, Socket socket) throws IOException {
+                try {
+                    finished.await(30, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    // ignore
+                }
+                // discard whatever is sent after the test has finished
+                BufferedInputStream in = new BufferedInputStream(socket.getInputStream());
+                while (in.read() >= 0) {
+                }
+            }
+        });
+        fluentd.start();
+        fluentd.waitUntilReady();
+
+        final AtomicInteger overflows = new AtomicInteger();
+        Sender sender = new AsyncSender("localhost", port, 3 * 1000, 8 * 1024 * 1024,
+                new ExponentialDelayReconnector(), 16, OverflowPolicy.CALLBACK);
+        sender.setErrorHandler(new ErrorHandler() {
+            @Override
+            public void handleBufferOverflow(Event event) {
+                overflows.incrementAndGet();
+            }
+        });
+
+        StringBuilder large = new StringBuilder();
+        for (int i = 0; i < 1024; i++) {
+            large.append('x');
+        }
+        int count = 100000;
+        int accepted = 0;
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < count && overflows.get() == 0; i++) {
+            Map<String, Object> record = new HashMap<String, Object>();
+            record.put("large", large.toString());
+            if (sender.emit("tag.overflow", record)) {
+                accepted++;
+            }
+        }
+
+        // emit never blocks even though the I/O thread can't write
+        assertTrue(System.currentTimeMillis() - start < 30 * 1000);
+        assertTrue(overflows.get() > 0);
+        assertTrue(accepted > 0);
+
+        // reset the connection so that the I/O thread can finish
+        fluentd.closeClientSockets();
+        finished.countDown();
+        sender.close();
+        fluentd.close();
+    }
+
+    @Test
+    public void testUnserializableEventDropsOnlyItself() throws Exception {
+        // start mock fluentd
+        int port = MockFluentd.randomPort();
+        final List<Event> elist = new CopyOnWriteArrayList<Event>();
+        MockFluentd fluentd = new MockFluentd(port, new MockFluentd.MockProcess() {
+            public void process(MessagePack msgpack, Socket socket) throws IOException {
+                BufferedInputStream in = new BufferedInputStream(socket.getInputStream());
+                try {
+                    Unpacker unpacker = msgpack.createUnpacker(in);
+                    while (true) {
+                        elist.add(unpacker.read(Event.class));
+                    }
+                } catch (EOFException e) {
+                    // ignore
+                }
+            }
+        });
+        fluentd.start();
+        fluentd.waitUntilReady();
+
+        // the I/O thread can't serialize one of the events, which is likely taken in a batch with others
+        Object unserializable = new Object() {
+            @Override
+            public String toString() {
+                throw new IllegalStateException("unserializable");
+            }
+        };
+        AsyncSender sender = new AsyncSender("localhost", port);
+        int count = 1000;
+        for (int i = 0; i < count; i++) {
+            Map<String, Object> record = new HashMap<String, Object>();
+            record.put("i", i == count / 2 ? unserializable : (Object) i);
+            assertTrue(sender.emit("tag.async", record));
+        }
+        sender.close();
+
+        // wait for unpacking event data on fluentd
+        Thread.sleep(1000);
+        fluentd.close();
+
+        // check data
+        assertEquals(count - 1, elist.size());
+        assertEquals(1, sender.getMetrics().getEventsDropped());
+    }
+
+    @Test
+    public void testEmitRacingClose() throws Exception {
+        // start mock fluentd
+        int port = MockFluentd.randomPort();
+        final AtomicInteger received = new AtomicInteger();
+        MockFluentd fluentd = new MockFluentd(port, new MockFluentd.MockProcess() {
+            public void process(MessagePack msgpack, Socket socket) throws IOException {
+                BufferedInputStream in = new BufferedInputStream(socket.getInputStream());
+                try {
+                    Unpacker unpacker = msgpack.createUnpacker(in);
+                    while (true) {
+                        unpacker.read(Event.class);
+                        received.incrementAndGet();
+                    }
+                } catch (EOFException e) {
+                    // ignore
+                }
+            }
+        });
+        fluentd.start();
+        fluentd.waitUntilReady();
+
+        // every event accepted while the sender is closing is still sent
+        final Sender sender = new AsyncSender("localhost", port);
+        final AtomicInteger accepted = new AtomicInteger();
+        final AtomicBoolean closed = new AtomicBoolean();
+        final CountDownLatch started = new CountDownLatch(4);
+        Thread[] emitters = new Thread[4];
+        for (int t = 0; t < emitters.length; t++) {
+            emitters[t] = new Thread() {
+                @Override
+                public void run() {
+                    started.countDown();
+                    Map<String, Object> record = new HashMap<String, Object>();
+                    record.put("k", "v");
+                    while (!closed.get()) {
+                        if (sender.emit("tag.async", record)) {
+                            accepted.incrementAndGet();
+                        }
+                    }
+                }
+            };
+            emitters[t].start();
+        }
+        started.await();
+        Thread.sleep(50);
+        sender.close();
+        closed.set(true);
+        for (Thread emitter : emitters) {
+            emitter.join();
+        }
+
+        // wait for unpacking event data on fluentd
+        long deadline = System.currentTimeMillis() + 5000;
+        while (received.get() < accepted.get() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        fluentd.close();
+        assertEquals(accepted.get(), received.get());
+    }
+}
@@ -0,0 +1,120 @@
+package org.fluentd.logger.sender;
+
+import org.junit.Test;
+import org.msgpack.MessagePack;
+import org.msgpack.unpacker.BufferUnpacker;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestByteBufferPacker {
+
+    @Test
+    public void testRollbackOnOverflow() throws Exception {
+        MessagePack msgpack = new MessagePack();
+        msgpack.register(Event.class, Event.EventTemplate.INSTANCE);
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+        ByteBufferPacker packer = new ByteBufferPacker(msgpack, buffer);
+
+        Map<String, Object> small = new HashMap<String, Object>();
+        small.put("k", "v");
+        assertTrue(packer.pack(new Event("tag", 1, small), false));
+        int position = buffer.position();
+        assertEquals(msgpack.write(new Event("tag", 1, small)).length, position);
+
+        // an event which doesn't fit leaves the buffer as it was
+        Map<String, Object> large = new HashMap<String, Object>();
+        large.put("k", "0123456789012345678901234567890123456789012345678901234567890123456789");
+        assertFalse(packer.pack(new Event("tag", 2, large), false));
+        assertEquals(position, buffer.position());
+
+        // and the packer can still be used afterwards
+        assertTrue(packer.pack(new Event("tag", 3, small), true));
+
+        BufferUnpacker unpacker = msgpack.createBufferUnpacker();
+        unpacker.wrap(buffer.array(), 0, buffer.position());
+        assertEquals("[\"tag\",1,{\"k\":\"v\"}]", unpacker.readValue().toString());
+        assertEquals("[3,{\"k\":\"v\"}]", unpacker.readValue().toString());
+    }
+
+    @Test
+    public void testEventTime() throws Exception {
+        MessagePack msgpack = new MessagePack();
+        msgpack.register(Event.class, Event.EventTemplate.INSTANCE);
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+        ByteBufferPacker packer = new ByteBufferPacker(msgpack, buffer);
+
+        Event event = new Event("t", 0x5a5b5c5dL, 123456789, new HashMap<String, Object>());
+        assertTrue(packer.pack(event, false));
+        byte[] expected = {
+                (byte) 0x93, (byte) 0xa1, 't',
+                (byte) 0xd7, 0x00, 0x5a, 0x5b, 0x5c, 0x5d, 0x07, 0x5b, (byte) 0xcd, 0x15,
+                (byte) 0x80 };
+        assertArrayEquals(expected, Arrays.copyOf(buffer.array(), buffer.position()));
+
+        // packers without ext types get the seconds
+        assertEquals("[\"t\",1515936861,{}]", msgpack.read(msgpack.write(event)).toString());
+    }
+
+    @Test
+    public void testMapRecordMatchesTemplate() throws Exception {
+        MessagePack msgpack = new MessagePack();
+        msgpack.register(Event.class, Event.EventTemplate.INSTANCE);
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+        ByteBufferPacker packer = new ByteBufferPacker(msgpack, buffer);
+
+        Map<String, Object> data = new HashMap<String, Object>();
+        for (int i = 0; i < 20; i++) {
+            data.put("field" + i, i);
+        }
+        data.put("caf\u00e9", "cr\u00e8me");
+        data.put("list", Arrays.asList(1, "two", 3.0));
+        data.put("nothing", null);
+        data.put("unknown", new StringBuilder("written as a string"));
+        Event event = new Event("tag", 1, data);
+
+        // twice, so the second time the keys come from the cache
+        for (int i = 0; i < 2; i++) {
+            buffer.clear();
+            assertTrue(packer.pack(event, false));
+            assertArrayEquals(msgpack.write(event), Arrays.copyOf(buffer.array(), buffer.position()));
+        }
+    }
+
+    @Test
+    public void testNullTag() throws Exception {
+        MessagePack msgpack = new MessagePack();
+        msgpack.register(Event.class, Event.EventTemplate.INSTANCE);
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+        ByteBufferPacker packer = new ByteBufferPacker(msgpack, buffer);
+
+        Event event = new Event(null, 1, new HashMap<String, Object>());
+        assertTrue(packer.pack(event, false));
+        assertArrayEquals(msgpack.write(event), Arrays.copyOf(buffer.array(), buffer.position()));
+    }
+
+    @Test
+    public void testNullKey() throws Exception {
+        MessagePack msgpack = new MessagePack();
+        msgpack.register(Event.class, Event.EventTemplate.INSTANCE);
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+        ByteBufferPacker packer = new ByteBufferPacker(msgpack, buffer);
+
+        Map<String, Object> data = new HashMap<String, Object>();
+        data.put(null, "v");
+        Event event = new Event("tag", 1, data);
+        assertTrue(packer.pack(event, false));
+        assertArrayEquals(msgpack.write(event), Arrays.copyOf(buffer.array(), buffer.position()));
+
+        EncodedRecord record = new EncodedRecord();
+        record.put(null, "v");
+        assertEquals(data, record.toMap());
+    }
+}
@@ -0,0 +1,97 @@
+package org.fluentd.logger.sender;
+
+import org.fluentd.logger.util.MockFluentd;
+import org.junit.Test;
+import org.msgpack.MessagePack;
+import org.msgpack.unpacker.BufferUnpacker;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestDatagramSender {
+
+    @Test
+    public void testBatchesUpToDatagramSize() throws Exception {
+        DatagramSocket socket = new DatagramSocket(0);
+        socket.setSoTimeout(1000);
+        int maxDatagramSize = 512;
+        DatagramSender sender = new DatagramSender("localhost", socket.getLocalPort(), maxDatagramSize, 0);
+
+        int count = 100;
+        for (int i = 0; i < count; i++) {
+            Map<String, Object> data = new HashMap<String, Object>();
+            data.put("i", i);
+            data.put("host", "web01");
+            assertTrue(sender.emit("tag.udp", data));
+        }
+        // an event which can't fit into any datagram is dropped
+        Map<String, Object> large = new HashMap<String, Object>();
+        large.put("k", new String(new char[maxDatagramSize]).replace('\0', 'x'));
+        assertFalse(sender.emit("tag.udp", large));
+        sender.close();
+
+        // receive the datagrams
+        MessagePack msgpack = new MessagePack();
+        List<Event> events = new ArrayList<Event>();
+        int datagrams = 0;
+        byte[] buf = new byte[65536];
+        while (true) {
+            DatagramPacket packet = new DatagramPacket(buf, buf.length);
+            try {
+                socket.receive(packet);
+            } catch (SocketTimeoutException e) {
+                break;
+            }
+            datagrams++;
+            assertTrue(packet.getLength() <= maxDatagramSize);
+            BufferUnpacker unpacker = msgpack.createBufferUnpacker();
+            unpacker.wrap(packet.getData(), 0, packet.getLength());
+            while (unpacker.getReadByteCount() < packet.getLength()) {
+                events.addAll(MockFluentd.readEvents(msgpack, unpacker));
+            }
+        }
+        socket.close();
+
+        // check data
+        assertEquals(count, events.size());
+        assertTrue(datagrams > 1 && datagrams < count);
+        for (int i = 0; i < count; i++) {
+            assertEquals("tag.udp", events.get(i).tag);
+            assertEquals((long) i, events.get(i).data.get("i"));
+        }
+        assertEquals(count, sender.getMetrics().getEventsEmitted());
+        assertEquals(1, sender.getMetrics().getEventsDropped());
+        assertEquals(datagrams, sender.getMetrics().getFlushCount());
+    }
+
+    @Test
+    public void testBackgroundFlush() throws Exception {
+        DatagramSocket socket = new DatagramSocket(0);
+        socket.setSoTimeout(5000);
+        DatagramSender sender = new DatagramSender("localhost", socket.getLocalPort());
+
+        Map<String, Object> data = new HashMap<String, Object>();
+        data.put("k", "v");
+        assertTrue(sender.emit("tag.udp", data));
+
+        // sent without a flush
+        byte[] buf = new byte[65536];
+        DatagramPacket packet = new DatagramPacket(buf, buf.length);
+        socket.receive(packet);
+        BufferUnpacker unpacker = new MessagePack().createBufferUnpacker();
+        unpacker.wrap(packet.getData(), 0, packet.getLength());
+        assertEquals("[\"tag.udp\"", unpacker.readValue().toString().substring(0, 10));
+
+        sender.close();
+        socket.close();
+    }
+}
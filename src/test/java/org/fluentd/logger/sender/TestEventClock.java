@@ -0,0 +1,45 @@
+package org.fluentd.logger.sender;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertTrue;
+
+public class TestEventClock {
+
+    @Test
+    public void testCloseToWallClock() {
+        long millis = System.currentTimeMillis();
+        long nanos = EventClock.currentTimeNanos();
+        assertTrue(Math.abs(nanos / 1000000 - millis) <= EventClock.MAX_DRIFT_MILLIS + 50);
+        assertTrue(EventClock.nanos(nanos) >= 0 && EventClock.nanos(nanos) < 1000000000);
+        assertTrue(Math.abs(EventClock.seconds(nanos) - millis / 1000) <= 1);
+    }
+
+    @Test
+    public void testNeverGoesBack() throws Exception {
+        Thread[] threads = new Thread[4];
+        final boolean[] ordered = new boolean[threads.length];
+        for (int t = 0; t < threads.length; t++) {
+            final int index = t;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    long prev = 0;
+                    for (int i = 0; i < 1000000; i++) {
+                        long now = EventClock.currentTimeNanos();
+                        if (now < prev) {
+                            return;
+                        }
+                        prev = now;
+                    }
+                    ordered[index] = true;
+                }
+            };
+            threads[t].start();
+        }
+        for (int t = 0; t < threads.length; t++) {
+            threads[t].join();
+            assertTrue(ordered[t]);
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package org.fluentd.logger.sender;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class TestEventRingBuffer {
+
+    @Test
+    public void testClaimPublishAndWrapAround() {
+        EventRingBuffer ring = new EventRingBuffer(3);
+        assertEquals(4, ring.capacity());
+
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < 4; i++) {
+                long sequence = ring.tryClaim();
+                assertEquals(round * 4 + i, sequence);
+                ring.slot(sequence).tag = "tag" + sequence;
+            }
+            // full until the consumer releases
+            assertEquals(-1, ring.tryClaim());
+            assertEquals(0, ring.available(4));
+
+            // only the published prefix is available
+            ring.publish(round * 4 + 1);
+            assertEquals(0, ring.available(4));
+            ring.publish(round * 4);
+            ring.publish(round * 4 + 3);
+            assertEquals(2, ring.available(4));
+            ring.publish(round * 4 + 2);
+            assertEquals(4, ring.available(4));
+            assertEquals(3, ring.available(3));
+
+            assertEquals("tag" + (round * 4 + 2), ring.slot(ring.first() + 2).tag);
+            ring.release(4);
+            assertTrue(ring.isEmpty());
+        }
+    }
+
+    @Test
+    public void testClose() {
+        EventRingBuffer ring = new EventRingBuffer(4);
+        long first = ring.tryClaim();
+        long second = ring.tryClaim();
+        ring.publish(first);
+
+        assertTrue(ring.close());
+        assertTrue(ring.isClosed());
+        assertFalse(ring.close());
+        // nothing more can be claimed, but what was claimed before is still consumed
+        assertEquals(-1, ring.tryClaim());
+        assertEquals(2, ring.claimed());
+        assertEquals(2, ring.size());
+        assertEquals(1, ring.available(4));
+        ring.publish(second);
+        assertEquals(2, ring.available(4));
+        ring.release(2);
+        assertTrue(ring.isEmpty());
+    }
+
+    @Test
+    public void testSlotRecordsAreReused() {
+        EventRingBuffer ring = new EventRingBuffer(2);
+        EncodedRecord record = ring.record(0);
+        assertSame(record, ring.record(2));
+
+        EncodedRecord source = new EncodedRecord();
+        source.put("k", "v");
+        record.copyFrom(source);
+        source.clear();
+        source.put("other", 1);
+        assertEquals(1, record.size());
+        assertEquals("{k=v}", record.toString());
+    }
+
+    @Test
+    public void testMultipleProducers() throws Exception {
+        final EventRingBuffer ring = new EventRingBuffer(64);
+        final int producers = 4;
+        final int perProducer = 20000;
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[producers];
+        for (int p = 0; p < producers; p++) {
+            final int producer = p;
+            threads[p] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < perProducer; i++) {
+                        long sequence;
+                        while ((sequence = ring.tryClaim()) < 0) {
+                            Thread.yield();
+                        }
+                        Event slot = ring.slot(sequence);
+                        slot.tag = String.valueOf(producer);
+                        slot.timestamp = i;
+                        ring.publish(sequence);
+                    }
+                }
+            };
+            threads[p].start();
+        }
+        start.countDown();
+
+        // each producer's events arrive in its own order
+        long[] next = new long[producers];
+        int received = 0;
+        while (received < producers * perProducer) {
+            int count = ring.available(16);
+            if (count == 0) {
+                ring.await(1000 * 1000);
+                continue;
+            }
+            for (int i = 0; i < count; i++) {
+                Event event = ring.slot(ring.first() + i);
+                int producer = Integer.parseInt(event.tag);
+                assertEquals(next[producer]++, event.timestamp);
+            }
+            ring.release(count);
+            received += count;
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue(ring.isEmpty());
+    }
+}
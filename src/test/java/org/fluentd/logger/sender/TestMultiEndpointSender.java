@@ -0,0 +1,193 @@
+package org.fluentd.logger.sender;
+
+import org.fluentd.logger.util.MockFluentd;
+import org.junit.Test;
+import org.msgpack.MessagePack;
+import org.msgpack.unpacker.Unpacker;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestMultiEndpointSender {
+
+    private static MockFluentd startFluentd(int port, final List<Event> elist) throws Exception {
+        MockFluentd fluentd = new MockFluentd(port, new MockFluentd.MockProcess() {
+            public void process(MessagePack msgpack, Socket socket) throws IOException {
+                BufferedInputStream in = new BufferedInputStream(socket.getInputStream());
+                try {
+                    Unpacker unpacker = msgpack.createUnpacker(in);
+                    while (true) {
+                        elist.addAll(MockFluentd.readEvents(msgpack, unpacker));
+                    }
+                } catch (EOFException e) {
+                    // ignore
+                }
+            }
+        });
+        fluentd.start();
+        fluentd.waitUntilReady();
+        return fluentd;
+    }
+
+    @Test
+    public void testWeightedRoundRobin() throws Exception {
+        // start mock fluentds
+        int port0 = MockFluentd.randomPort();
+        int port1 = MockFluentd.randomPort();
+        List<Event> elist0 = new CopyOnWriteArrayList<Event>();
+        List<Event> elist1 = new CopyOnWriteArrayList<Event>();
+        MockFluentd fluentd0 = startFluentd(port0, elist0);
+        MockFluentd fluentd1 = startFluentd(port1, elist1);
+
+        // start senders
+        Sender sender = new MultiEndpointSender(String.format("localhost:%d:1,localhost:%d:3", port0, port1),
+                24224, 3000, 1024 * 1024);
+        int count = 100;
+        for (int i = 0; i < count; i++) {
+            Map<String, Object> data = new HashMap<String, Object>();
+            data.put("i", i);
+            assertTrue(sender.emit("tag.multi", data));
+        }
+        sender.close();
+
+        // wait for unpacking event data on fluentd
+        Thread.sleep(1000);
+        fluentd0.close();
+        fluentd1.close();
+
+        // check data
+        assertEquals(count / 4, elist0.size());
+        assertEquals(count * 3 / 4, elist1.size());
+    }
+
+    @Test
+    public void testLeastInFlightBreaksTiesByWeight() throws Exception {
+        // start mock fluentds
+        int port0 = MockFluentd.randomPort();
+        int port1 = MockFluentd.randomPort();
+        List<Event> elist0 = new CopyOnWriteArrayList<Event>();
+        List<Event> elist1 = new CopyOnWriteArrayList<Event>();
+        MockFluentd fluentd0 = startFluentd(port0, elist0);
+        MockFluentd fluentd1 = startFluentd(port1, elist1);
+
+        // start senders; every event is written right away, so the endpoints are always tied
+        Sender sender = new MultiEndpointSender(MultiEndpointSender.Endpoint.parse(
+                String.format("localhost:%d:1,localhost:%d:3", port0, port1), 24224), 3000, 1024 * 1024,
+                BalancingPolicy.LEAST_IN_FLIGHT);
+        int count = 100;
+        for (int i = 0; i < count; i++) {
+            Map<String, Object> data = new HashMap<String, Object>();
+            data.put("i", i);
+            assertTrue(sender.emit("tag.multi", data));
+        }
+        sender.close();
+
+        // wait for unpacking event data on fluentd
+        Thread.sleep(1000);
+        fluentd0.close();
+        fluentd1.close();
+
+        // check data
+        assertEquals(count / 4, elist0.size());
+        assertEquals(count * 3 / 4, elist1.size());
+    }
+
+    @Test
+    public void testBatchesGoToOneEndpoint() throws Exception {
+        // start mock fluentds
+        int port0 = MockFluentd.randomPort();
+        int port1 = MockFluentd.randomPort();
+        List<Event> elist0 = new CopyOnWriteArrayList<Event>();
+        List<Event> elist1 = new CopyOnWriteArrayList<Event>();
+        MockFluentd fluentd0 = startFluentd(port0, elist0);
+        MockFluentd fluentd1 = startFluentd(port1, elist1);
+
+        // start senders; every 10 events are written at once
+        MultiEndpointSender sender = new MultiEndpointSender(String.format("localhost:%d,localhost:%d", port0,
+                port1), 24224, 3000, 1024 * 1024);
+        sender.setFlushPolicy(new ThresholdFlushPolicy(1024 * 1024, 10, 0));
+        int count = 100;
+        for (int i = 0; i < count; i++) {
+            Map<String, Object> data = new HashMap<String, Object>();
+            data.put("i", i);
+            assertTrue(sender.emit("tag.multi", data));
+        }
+        sender.close();
+
+        // wait for unpacking event data on fluentd
+        Thread.sleep(1000);
+        fluentd0.close();
+        fluentd1.close();
+
+        // check data; the batches alternate between the endpoints
+        assertEquals(count / 2, elist0.size());
+        assertEquals(count / 2, elist1.size());
+        for (Event e : elist0) {
+            assertEquals(0, ((Long) e.data.get("i")) / 10 % 2);
+        }
+        for (Event e : elist1) {
+            assertEquals(1, ((Long) e.data.get("i")) / 10 % 2);
+        }
+    }
+
+    @Test
+    public void testFailover() throws Exception {
+        // only the second endpoint is up
+        int port0 = MockFluentd.randomPort();
+        int port1 = MockFluentd.randomPort();
+        List<Event> elist = new CopyOnWriteArrayList<Event>();
+        MockFluentd fluentd = startFluentd(port1, elist);
+
+        // start senders
+        List<MultiEndpointSender.Endpoint> endpoints = Arrays.asList(
+                new MultiEndpointSender.Endpoint("localhost", port0),
+                new MultiEndpointSender.Endpoint("localhost", port1));
+        MultiEndpointSender sender = new MultiEndpointSender(endpoints, 3000, 1024 * 1024,
+                BalancingPolicy.LEAST_IN_FLIGHT);
+        sender.setPackedForward(true);
+        int count = 50;
+        for (int i = 0; i < count; i++) {
+            Map<String, Object> data = new HashMap<String, Object>();
+            data.put("i", i);
+            assertTrue(sender.emit("tag.failover", data));
+            Thread.sleep(20);
+        }
+        sender.close();
+
+        // wait for unpacking event data on fluentd
+        Thread.sleep(1000);
+        fluentd.close();
+
+        // check data; the events buffered for the first endpoint were moved to the second
+        assertEquals(count, elist.size());
+        Set<Long> values = new HashSet<Long>();
+        for (Event e : elist) {
+            values.add((Long) e.data.get("i"));
+        }
+        assertEquals(count, values.size());
+    }
+
+    @Test
+    public void testParseEndpoints() {
+        List<MultiEndpointSender.Endpoint> endpoints = MultiEndpointSender.Endpoint.parse("a, b:24225, c:24226:5",
+                24224);
+        List<String> specs = new ArrayList<String>();
+        for (MultiEndpointSender.Endpoint endpoint : endpoints) {
+            specs.add(endpoint.toString());
+        }
+        assertEquals(Arrays.asList("a:24224:1", "b:24225:1", "c:24226:5"), specs);
+    }
+}
@@ -0,0 +1,97 @@
+package org.fluentd.logger.sender;
+
+import org.fluentd.logger.util.MockFluentd;
+import org.junit.Test;
+import org.msgpack.MessagePack;
+import org.msgpack.unpacker.Unpacker;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestPooledSender {
+
+    @Test
+    public void testMultipleThreads() throws Exception {
+        // start mock fluentd
+        int port = MockFluentd.randomPort();
+        final AtomicInteger connections = new AtomicInteger();
+        final List<Event> elist = new CopyOnWriteArrayList<Event>();
+        MockFluentd fluentd = new MockFluentd(port, new MockFluentd.MockProcess() {
+            public void process(MessagePack msgpack, Socket socket) throws IOException {
+                connections.incrementAndGet();
+                BufferedInputStream in = new BufferedInputStream(socket.getInputStream());
+                try {
+                    Unpacker unpacker = msgpack.createUnpacker(in);
+                    while (true) {
+                        Event e = unpacker.read(Event.class);
+                        elist.add(e);
+                    }
+                } catch (EOFException e) {
+                    // ignore
+                }
+            }
+        });
+        fluentd.start();
+        fluentd.waitUntilReady();
+
+        // emit from several threads
+        final PooledSender sender = new PooledSender("localhost", port, 3 * 1000, 8 * 1024 * 1024, 4);
+        assertEquals(4, sender.getConnections());
+        int threads = 8;
+        final int count = 1000;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        for (int t = 0; t < threads; t++) {
+            final String tag = "tag.thread" + t;
+            executor.submit(new Runnable() {
+                public void run() {
+                    for (int i = 0; i < count; i++) {
+                        Map<String, Object> data = new HashMap<String, Object>();
+                        data.put("i", i);
+                        sender.emit(tag, data);
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(30, TimeUnit.SECONDS));
+
+        // close sender sockets
+        sender.close();
+
+        // wait for unpacking event data on fluentd
+        Thread.sleep(2000);
+
+        // close mock server sockets
+        fluentd.close();
+
+        // check data; the events of each thread arrive in order
+        assertEquals(threads * count, elist.size());
+        assertTrue(connections.get() > 1);
+        for (int t = 0; t < threads; t++) {
+            List<Long> values = new ArrayList<Long>();
+            for (Event e : elist) {
+                if (e.tag.equals("tag.thread" + t)) {
+                    values.add((Long) e.data.get("i"));
+                }
+            }
+            assertEquals(count, values.size());
+            for (int i = 0; i < count; i++) {
+                assertEquals((long) i, (long) values.get(i));
+            }
+        }
+    }
+}
@@ -1,27 +1,39 @@
 package org.fluentd.logger.sender;
 
+import org.fluentd.logger.errorhandler.ErrorHandler;
 import org.fluentd.logger.util.MockFluentd;
 import org.fluentd.logger.util.MockFluentd.MockProcess;
 import org.junit.Test;
 import org.msgpack.MessagePack;
+import org.msgpack.packer.Packer;
 import org.msgpack.unpacker.Unpacker;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import java.io.BufferedInputStream;
 import java.io.EOFException;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.WeakReference;
 import java.net.Socket;
 import java.util.*;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 
@@ -224,6 +236,953 @@ public class TestRawSocketSender {
         assertEquals(counts[1], elists[1].size());
     }
 
+    @Test
+    public void testPackedForward() throws Exception {
+        // start mock fluentd
+        int port = MockFluentd.randomPort();
+        final List<List<Event>> messages = new CopyOnWriteArrayList<List<Event>>();
+        MockFluentd fluentd = new MockFluentd(port, new MockFluentd.MockProcess() {
+            public void process(MessagePack msgpack, Socket socket) throws IOException {
+                BufferedInputStream in = new BufferedInputStream(socket.getInputStream());
+                try {
+                    Unpacker unpacker = msgpack.createUnpacker(in);
+                    while (true) {
+                        messages.add(MockFluentd.readEvents(msgpack, unpacker));
+                    }
+                } catch (EOFException e) {
+                    // ignore
+                }
+            }
+        });
+        fluentd.start();
+        fluentd.waitUntilReady();
+
+        // start senders
+        RawSocketSender sender = new RawSocketSender("localhost", port);
+        sender.setPackedForward(true);
+        int count = 10000;
+        for (int i = 0; i < count; i++) {
+            Map<String, Object> record = new HashMap<String, Object>();
+            record.put("i", i);
+            // buffer events of two interleaved tags and flush them at once
+            assertTrue(sender.emit(new Event(i % 2 == 0 ? "tag.even" : "tag.odd", i, record), false));
+        }
+        sender.flush();
+
+        // close sender sockets
+        sender.close();
+
+        // wait for unpacking event data on fluentd
+        Thread.sleep(2000);
+
+        // close mock server sockets
+        fluentd.close();
+
+        // check data: one message per tag, in emitted order
+        assertEquals(2, messages.size());
+        List<Event> even = messages.get(0);
+        List<Event> odd = messages.get(1);
+        assertEquals(count / 2, even.size());
+        assertEquals(count / 2, odd.size());
+        for (int i = 0; i < count / 2; i++) {
+            assertEquals("tag.even", even.get(i).tag);
+            assertEquals((long) i * 2, even.get(i).timestamp);
+            assertEquals((long) i * 2, even.get(i).data.get("i"));
+            assertEquals("tag.odd", odd.get(i).tag);
+            assertEquals((long) i * 2 + 1, odd.get(i).data.get("i"));
+        }
+    }
+
+    @Test
+    public void testDirectBufferPool() throws Exception {
+        // start mock fluentd
+        int port = MockFluentd.randomPort();
+        final List<Event> elist = new CopyOnWriteArrayList<Event>();
+        MockFluentd fluentd = new MockFluentd(port, new MockFluentd.MockProcess() {
+            public void process(MessagePack msgpack, Socket socket) throws IOException {
+                BufferedInputStream in = new BufferedInputStream(socket.getInputStream());
+                try {
+                    Unpacker unpacker = msgpack.createUnpacker(in);
+                    while (true) {
+                        elist.addAll(MockFluentd.readEvents(msgpack, unpacker));
+                    }
+                } catch (EOFException e) {
+                    // ignore
+                }
+            }
+        });
+        fluentd.start();
+        fluentd.waitUntilReady();
+
+        // start senders
+        DirectBufferPool pool = new DirectBufferPool(DirectBufferPool.DEFAULT_MAX_POOLED_BYTES);
+        RawSocketSender sender = new RawSocketSender("localhost", port, 3000, 1024 * 1024,
+                new ExponentialDelayReconnector(), pool);
+        sender.setPackedForward(true);
+        // more than the first segment, so that the buffer grows
+        int count = 10000;
+        for (int i = 0; i < count; i++) {
+            Map<String, Object> record = new HashMap<String, Object>();
+            record.put("i", i);
+            record.put("padding", "0123456789");
+            assertTrue(sender.emit(new Event("tag.direct", i, record), false));
+        }
+        assertTrue(sender.getPendingBytes() > DirectBufferPool.MIN_SEGMENT_SIZE);
+        sender.flush();
+        // the smaller segments were given back while growing
+        long pooled = pool.getPooledBytes();
+        assertTrue(pooled > 0);
+
+        // a small flush gives the grown buffer back too
+        assertTrue(sender.emit("tag.direct", new HashMap<String, Object>()));
+        assertTrue(pool.getPooledBytes() > pooled + DirectBufferPool.MIN_SEGMENT_SIZE);
+
+        // close sender sockets
+        sender.close();
+
+        // wait for unpacking event data on fluentd
+        Thread.sleep(1000);
+
+        // close mock server sockets
+        fluentd.close();
+
+        // check data
+        assertEquals(count + 1, elist.size());
+        for (int i = 0; i < count; i++) {
+            assertEquals((long) i, elist.get(i).data.get("i"));
+        }
+    }
+
+    @Test
+    public void testDirectBufferPoolReleasedOnClose() throws Exception {
+        DirectBufferPool pool = new DirectBufferPool(DirectBufferPool.DEFAULT_MAX_POOLED_BYTES);
+        RawSocketSender sender = new RawSocketSender("localhost", MockFluentd.randomPort(), 3000, 1024 * 1024,
+                new ExponentialDelayReconnector(), pool);
+        assertEquals(0, pool.getPooledBytes());
+        sender.close();
+        assertEquals(DirectBufferPool.MIN_SEGMENT_SIZE, pool.getPooledBytes());
+
+        // using the closed sender doesn't touch the buffer, which another sender has taken
+        RawSocketSender other = new RawSocketSender("localhost", MockFluentd.randomPort(), 3000, 1024 * 1024,
+                new ExponentialDelayReconnector(), pool);
+        assertEquals(0, pool.getPooledBytes());
+        assertTrue(sender.emit("tag.direct", new HashMap<String, Object>()));
+        assertTrue(sender.getPendingBytes() > 0);
+        assertEquals(0, other.getPendingBytes());
+        sender.close();
+        assertEquals(0, pool.getPooledBytes());
+        other.close();
+        assertEquals(DirectBufferPool.MIN_SEGMENT_SIZE, pool.getPooledBytes());
+    }
+
+    @Test
+    public void testEmitAfterCloseWithDirectBufferPool() throws Exception {
+        // start mock fluentd
+        int port = MockFluentd.randomPort();
+        final List<Event> elist = new CopyOnWriteArrayList<Event>();
+        MockFluentd fluentd = new MockFluentd(port, new MockFluentd.MockProcess() {
+            public void process(MessagePack msgpack, Socket socket) throws IOException {
+                BufferedInputStream in = new BufferedInputStream(socket.getInputStream());
+                try {
+                    Unpacker unpacker = msgpack.createUnpacker(in);
+                    while (true) {
+                        elist.add(unpacker.read(Event.class));
+                    }
+                } catch (EOFException e) {
+                    // ignore
+                }
+            }
+        });
+        fluentd.start();
+        fluentd.waitUntilReady();
+
+        // a closed sender reconnects when it's used again, without its pooled buffer
+        DirectBufferPool pool = new DirectBufferPool(DirectBufferPool.DEFAULT_MAX_POOLED_BYTES);
+        RawSocketSender sender = new RawSocketSender("localhost", port, 3000, 1024 * 1024,
+                new ExponentialDelayReconnector(), pool);
+        Map<String, Object> data = new HashMap<String, Object>();
+        data.put("k", "v");
+        assertTrue(sender.emit("tag.direct", data));
+        sender.close();
+        for (int i = 0; i < 10; i++) {
+            assertTrue(sender.emit("tag.direct", data));
+        }
+        sender.close();
+        assertEquals(DirectBufferPool.MIN_SEGMENT_SIZE, pool.getPooledBytes());
+
+        // wait for unpacking event data on fluentd
+        Thread.sleep(1000);
+        fluentd.close();
+
+        assertEquals(11, elist.size());
+    }
+
+    @Test
+    public void testCompressedPackedForward() throws Exception {
+        // start mock fluentd
+        int port = MockFluentd.randomPort();
+        final List<List<Event>> messages = new CopyOnWriteArrayList<List<Event>>();
+        final List<Map<String, Object>> options = new CopyOnWriteArrayList<Map<String, Object>>();
+        MockFluentd fluentd = new MockFluentd(port, new MockFluentd.MockProcess() {
+            public void process(MessagePack msgpack, Socket socket) throws IOException {
+                BufferedInputStream in = new BufferedInputStream(socket.getInputStream());
+                try {
+                    Unpacker unpacker = msgpack.createUnpacker(in);
+                    while (true) {
+                        Map<String, Object> option = new HashMap<String, Object>();
+                        messages.add(MockFluentd.readEvents(msgpack, unpacker, option));
+                        options.add(option);
+                    }
+                } catch (EOFException e) {
+                    // ignore
+                }
+            }
+        });
+        fluentd.start();
+        fluentd.waitUntilReady();
+
+        // start senders; a tag with less than 1KB of entries is sent uncompressed
+        RawSocketSender sender = new RawSocketSender("localhost", port);
+        sender.enableCompression(6, 1024);
+        assertTrue(sender.isPackedForward());
+        assertTrue(sender.isCompressed());
+        int count = 1000;
+        for (int i = 0; i < count; i++) {
+            Map<String, Object> record = new HashMap<String, Object>();
+            record.put("i", i);
+            record.put("n", "name:" + i);
+            assertTrue(sender.emit(new Event("tag.large", i, record), false));
+        }
+        Map<String, Object> small = new HashMap<String, Object>();
+        small.put("k", "v");
+        assertTrue(sender.emit(new Event("tag.small", 0, small), false));
+        sender.flush();
+
+        // close sender sockets
+        sender.close();
+
+        // wait for unpacking event data on fluentd
+        Thread.sleep(2000);
+
+        // close mock server sockets
+        fluentd.close();
+
+        // check data
+        assertEquals(2, messages.size());
+        assertEquals("gzip", options.get(0).get("compressed"));
+        assertEquals((long) count, options.get(0).get("size"));
+        List<Event> large = messages.get(0);
+        assertEquals(count, large.size());
+        for (int i = 0; i < count; i++) {
+            assertEquals("tag.large", large.get(i).tag);
+            assertEquals((long) i, large.get(i).data.get("i"));
+            assertEquals("name:" + i, large.get(i).data.get("n"));
+        }
+        assertTrue(options.get(1).isEmpty());
+        assertEquals(1, messages.get(1).size());
+        assertEquals("v", messages.get(1).get(0).data.get("k"));
+    }
+
+    @Test
+    public void testAck() throws Exception {
+        // start mock fluentd which acknowledges every chunk
+        int port = MockFluentd.randomPort();
+        final List<Event> elist = new CopyOnWriteArrayList<Event>();
+        MockFluentd fluentd = new MockFluentd(port, new MockFluentd.MockProcess() {
+            public void process(MessagePack msgpack, Socket socket) throws IOException {
+                BufferedInputStream in = new BufferedInputStream(socket.getInputStream());
+                Packer packer = msgpack.createPacker(socket.getOutputStream());
+                try {
+                    Unpacker unpacker = msgpack.createUnpacker(in);
+                    while (true) {
+                        Map<String, Object> option = new HashMap<String, Object>();
+                        elist.addAll(MockFluentd.readEvents(msgpack, unpacker, option));
+                        writeAck(packer, (String) option.get("chunk"));
+                    }
+                } catch (EOFException e) {
+                    // ignore
+                }
+            }
+        });
+        fluentd.start();
+        fluentd.waitUntilReady();
+
+        // start senders
+        RawSocketSender sender = new RawSocketSender("localhost", port);
+        sender.enableAck(3000, 4);
+        assertTrue(sender.isPackedForward());
+        int count = 1000;
+        for (int i = 0; i < count; i++) {
+            Map<String, Object> record = new HashMap<String, Object>();
+            record.put("i", i);
+            assertTrue(sender.emit("tag.ack", record));
+        }
+        sender.flush();
+
+        // close sender sockets after all chunks are acknowledged
+        sender.close();
+        assertEquals(0, sender.getUnacknowledgedChunkCount());
+
+        // close mock server sockets
+        fluentd.close();
+
+        // check data
+        assertEquals(count, elist.size());
+        for (int i = 0; i < count; i++) {
+            assertEquals((long) i, elist.get(i).data.get("i"));
+        }
+    }
+
+    @Test
+    public void testAckResendAfterConnectionLoss() throws Exception {
+        // start mock fluentd which drops the first chunk and acknowledges the rest
+        int port = MockFluentd.randomPort();
+        final AtomicBoolean dropped = new AtomicBoolean(false);
+        final List<Event> elist = new CopyOnWriteArrayList<Event>();
+        MockFluentd fluentd = new MockFluentd(port, new MockFluentd.MockProcess() {
+            public void process(MessagePack msgpack, Socket socket) throws IOException {
+                BufferedInputStream in = new BufferedInputStream(socket.getInputStream());
+                Packer packer = msgpack.createPacker(socket.getOutputStream());
+                try {
+                    Unpacker unpacker = msgpack.createUnpacker(in);
+                    while (true) {
+                        Map<String, Object> option = new HashMap<String, Object>();
+                        List<Event> events = MockFluentd.readEvents(msgpack, unpacker, option);
+                        if (dropped.compareAndSet(false, true)) {
+                            socket.close();
+                            return;
+                        }
+                        elist.addAll(events);
+                        writeAck(packer, (String) option.get("chunk"));
+                    }
+                } catch (EOFException e) {
+                    // ignore
+                }
+            }
+        });
+        fluentd.start();
+        fluentd.waitUntilReady();
+
+        // start senders
+        RawSocketSender sender = new RawSocketSender("localhost", port, 3000, 8 * 1024 * 1024,
+                new ConstantDelayReconnector(100));
+        sender.enableAck(500, 4);
+        Map<String, Object> data = new HashMap<String, Object>();
+        data.put("key0", "v0");
+        assertTrue(sender.emit("tag.ack", data));
+        assertEquals(1, sender.getUnacknowledgedChunkCount());
+
+        // the connection is reset once the ack timeout passes, and the chunk is sent again
+        TimeUnit.MILLISECONDS.sleep(1000);
+        data = new HashMap<String, Object>();
+        data.put("key0", "v1");
+        sender.emit("tag.ack", data);
+        TimeUnit.MILLISECONDS.sleep(200);
+        data = new HashMap<String, Object>();
+        data.put("key0", "v2");
+        assertTrue(sender.emit("tag.ack", data));
+
+        sender.close();
+        assertEquals(0, sender.getUnacknowledgedChunkCount());
+        fluentd.close();
+
+        // check data
+        assertEquals(3, elist.size());
+        assertEquals("v0", elist.get(0).data.get("key0"));
+        assertEquals("v1", elist.get(1).data.get("key0"));
+        assertEquals("v2", elist.get(2).data.get("key0"));
+    }
+
+    @Test
+    public void testSlowReader() throws Exception {
+        // start mock fluentd which doesn't read until the sender has emitted everything
+        int port = MockFluentd.randomPort();
+        final CountDownLatch emitted = new CountDownLatch(1);
+        final List<Event> elist = new CopyOnWriteArrayList<Event>();
+        MockFluentd fluentd = new MockFluentd(port, new MockFluentd.MockProcess() {
+            public void process(MessagePack msgpack, Socket socket) throws IOException {
+                try {
+                    emitted.await(30, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    // ignore
+                }
+                BufferedInputStream in = new BufferedInputStream(socket.getInputStream());
+                try {
+                    Unpacker unpacker = msgpack.createUnpacker(in);
+                    while (true) {
+                        elist.add(unpacker.read(Event.class));
+                    }
+                } catch (EOFException e) {
+                    // ignore
+                }
+            }
+        });
+        fluentd.start();
+        fluentd.waitUntilReady();
+
+        // emit more than the socket buffers can hold; the writes are left partial instead of blocking
+        Sender sender = new RawSocketSender("localhost", port, 3000, 32 * 1024 * 1024);
+        StringBuilder large = new StringBuilder();
+        for (int i = 0; i < 1024; i++) {
+            large.append('x');
+        }
+        int count = 16 * 1024;
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < count; i++) {
+            Map<String, Object> data = new HashMap<String, Object>();
+            data.put("i", i);
+            data.put("large", large.toString());
+            assertTrue(sender.emit("tag.slow", data));
+        }
+        assertTrue(System.currentTimeMillis() - start < 3000);
+
+        // close writes the rest once fluentd starts reading
+        emitted.countDown();
+        sender.close();
+        TimeUnit.MILLISECONDS.sleep(1000);
+        fluentd.close();
+
+        // check data
+        assertEquals(count, elist.size());
+        for (int i = 0; i < count; i++) {
+            assertEquals((long) i, elist.get(i).data.get("i"));
+        }
+    }
+
+    @Test
+    public void testSpill() throws Exception {
+        File dir = File.createTempFile("fluent-spill", "");
+        assertTrue(dir.delete());
+        int port = MockFluentd.randomPort();
+
+        // fluentd is down: events which don't fit into the buffer are spilled, and the rest on close
+        RawSocketSender sender = new RawSocketSender("localhost", port, 3000, 1024, new ConstantDelayReconnector(0));
+        sender.setPackedForward(true);
+        sender.enableSpill(dir, 1024 * 1024, 2048);
+        int count = 100;
+        for (int i = 0; i < count; i++) {
+            Map<String, Object> data = new HashMap<String, Object>();
+            data.put("i", i);
+            data.put("padding", "0123456789012345678901234567890123456789");
+            assertTrue(sender.emit("tag.spill", data));
+        }
+        sender.close();
+        assertTrue(sender.getSpilledBytes() > 0);
+        assertTrue(dir.list().length > 1);
+
+        // start mock fluentd
+        final List<Event> elist = new CopyOnWriteArrayList<Event>();
+        MockFluentd fluentd = new MockFluentd(port, new MockFluentd.MockProcess() {
+            public void process(MessagePack msgpack, Socket socket) throws IOException {
+                BufferedInputStream in = new BufferedInputStream(socket.getInputStream());
+                try {
+                    Unpacker unpacker = msgpack.createUnpacker(in);
+                    while (true) {
+                        elist.addAll(MockFluentd.readEvents(msgpack, unpacker));
+                    }
+                } catch (EOFException e) {
+                    // ignore
+                }
+            }
+        });
+        fluentd.start();
+        fluentd.waitUntilReady();
+
+        // another sender replays the spilled events before its own
+        sender = new RawSocketSender("localhost", port);
+        sender.enableSpill(dir, 1024 * 1024, 2048);
+        Map<String, Object> data = new HashMap<String, Object>();
+        data.put("i", count);
+        assertTrue(sender.emit("tag.spill", data));
+        sender.close();
+        assertEquals(0, sender.getSpilledBytes());
+        assertEquals(0, dir.list().length);
+        assertTrue(dir.delete());
+
+        // wait for unpacking event data on fluentd
+        TimeUnit.MILLISECONDS.sleep(1000);
+        fluentd.close();
+
+        // check data
+        assertEquals(count + 1, elist.size());
+        for (int i = 0; i <= count; i++) {
+            assertEquals((long) i, elist.get(i).data.get("i"));
+        }
+    }
+
+    @Test
+    public void testDropOldest() throws Exception {
+        // start mock fluentd
+        int port = MockFluentd.randomPort();
+        final List<Event> elist = new CopyOnWriteArrayList<Event>();
+        MockFluentd fluentd = new MockFluentd(port, new MockFluentd.MockProcess() {
+            public void process(MessagePack msgpack, Socket socket) throws IOException {
+                BufferedInputStream in = new BufferedInputStream(socket.getInputStream());
+                try {
+                    Unpacker unpacker = msgpack.createUnpacker(in);
+                    while (true) {
+                        elist.addAll(MockFluentd.readEvents(msgpack, unpacker));
+                    }
+                } catch (EOFException e) {
+                    // ignore
+                }
+            }
+        });
+        fluentd.start();
+        fluentd.waitUntilReady();
+
+        for (boolean packedForward : new boolean[] { false, true }) {
+            elist.clear();
+            RawSocketSender sender = new RawSocketSender("localhost", port, 3000, 1024);
+            sender.setPackedForward(packedForward);
+            sender.setOverflowPolicy(OverflowPolicy.DROP_OLDEST);
+            int count = 1000;
+            for (int i = 0; i < count; i++) {
+                Map<String, Object> record = new HashMap<String, Object>();
+                record.put("i", i);
+                // buffer without writing, so that the buffer overflows
+                assertTrue(sender.emit(new Event(i % 2 == 0 ? "tag.even" : "tag.odd", i, record), false));
+            }
+            sender.flush();
+            sender.close();
+            Thread.sleep(500);
+
+            // the newest events are left, in order per tag
+            long evicted = sender.getMetrics().getEventsEvicted();
+            assertTrue(evicted > 0);
+            assertEquals(evicted, sender.getMetrics().getEventsDropped());
+            assertEquals(count - evicted, elist.size());
+            Set<Long> values = new TreeSet<Long>();
+            for (Event e : elist) {
+                long i = (Long) e.data.get("i");
+                assertEquals(i % 2 == 0 ? "tag.even" : "tag.odd", e.tag);
+                values.add(i);
+            }
+            assertEquals(elist.size(), values.size());
+            assertEquals(evicted, (long) values.iterator().next());
+        }
+        fluentd.close();
+    }
+
+    @Test
+    public void testOverflowWithOversizedEvent() throws Exception {
+        // nothing listens, and the events are only buffered
+        int port = MockFluentd.randomPort();
+        RawSocketSender sender = new RawSocketSender("localhost", port, 3000, 1024);
+        sender.setOverflowPolicy(OverflowPolicy.DROP_OLDEST);
+        for (int i = 0; i < 10; i++) {
+            Map<String, Object> record = new HashMap<String, Object>();
+            record.put("i", i);
+            assertTrue(sender.emit(new Event("tag.small", i, record), false));
+        }
+        int pending = sender.getPendingBytes();
+        StringBuilder large = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            large.append('x');
+        }
+        Map<String, Object> record = new HashMap<String, Object>();
+        record.put("large", large.toString());
+
+        // the queued events are kept
+        assertFalse(sender.emit(new Event("tag.large", 0, record), false));
+        assertEquals(0L, sender.getMetrics().getEventsEvicted());
+        assertEquals(1L, sender.getMetrics().getEventsDropped());
+        assertEquals(pending, sender.getPendingBytes());
+        assertEquals(pending, sender.getMetrics().getPendingBytes());
+
+        // the handler gets a copy of the event it can keep
+        final List<Event> overflowed = new ArrayList<Event>();
+        sender.setOverflowPolicy(OverflowPolicy.CALLBACK);
+        sender.setErrorHandler(new ErrorHandler() {
+            @Override
+            public void handleBufferOverflow(Event event) {
+                overflowed.add(event);
+            }
+        });
+        Event event = new Event("tag.large", 0, record);
+        assertFalse(sender.emit(event, false));
+        assertEquals(1, overflowed.size());
+        assertNotSame(event, overflowed.get(0));
+        assertEquals("tag.large", overflowed.get(0).tag);
+        sender.close();
+    }
+
+    @Test
+    public void testBlockTimeout() throws Exception {
+        // start mock fluentd which doesn't read until the sender has emitted everything
+        int port = MockFluentd.randomPort();
+        final CountDownLatch emitted = new CountDownLatch(1);
+        MockFluentd fluentd = new MockFluentd(port, new MockFluentd.MockProcess() {
+            public void process(MessagePack msgpack, Socket socket) throws IOException {
+                try {
+                    emitted.await(30, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    // ignore
+                }
+                InputStream in = socket.getInputStream();
+                byte[] buf = new byte[64 * 1024];
+                while (in.read(buf) >= 0) {
+                }
+            }
+        });
+        fluentd.start();
+        fluentd.waitUntilReady();
+
+        // emit until the socket buffers are full; then each emit gives up after the block timeout
+        RawSocketSender sender = new RawSocketSender("localhost", port, 3000, 64 * 1024);
+        sender.setOverflowPolicy(OverflowPolicy.BLOCK, 50);
+        StringBuilder large = new StringBuilder();
+        for (int i = 0; i < 1024; i++) {
+            large.append('x');
+        }
+        int timeouts = 0;
+        for (int i = 0; i < 64 * 1024 && timeouts < 3; i++) {
+            Map<String, Object> data = new HashMap<String, Object>();
+            data.put("large", large.toString());
+            long start = System.currentTimeMillis();
+            if (!sender.emit("tag.block", data)) {
+                assertTrue(System.currentTimeMillis() - start < 1000);
+                timeouts++;
+            }
+        }
+        assertEquals(3, timeouts);
+        assertEquals(3L, sender.getMetrics().getBlockTimeouts());
+        assertEquals(3L, sender.getMetrics().getEventsDropped());
+
+        emitted.countDown();
+        sender.close();
+        fluentd.close();
+    }
+
+    @Test
+    public void testMetrics() throws Exception {
+        // start mock fluentd
+        int port = MockFluentd.randomPort();
+        final List<Event> elist = new CopyOnWriteArrayList<Event>();
+        MockFluentd fluentd = new MockFluentd(port, new MockFluentd.MockProcess() {
+            public void process(MessagePack msgpack, Socket socket) throws IOException {
+                BufferedInputStream in = new BufferedInputStream(socket.getInputStream());
+                try {
+                    Unpacker unpacker = msgpack.createUnpacker(in);
+                    while (true) {
+                        elist.add(unpacker.read(Event.class));
+                    }
+                } catch (EOFException e) {
+                    // ignore
+                }
+            }
+        });
+        fluentd.start();
+        fluentd.waitUntilReady();
+
+        // start senders
+        RawSocketSender sender = new RawSocketSender("localhost", port);
+        ObjectName name = sender.getMetrics().getObjectName();
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        assertTrue(server.isRegistered(name));
+        int count = 100;
+        for (int i = 0; i < count; i++) {
+            Map<String, Object> data = new HashMap<String, Object>();
+            data.put("i", i);
+            assertTrue(sender.emit("tag.metrics", data));
+        }
+        sender.flush();
+
+        assertEquals((long) count, server.getAttribute(name, "EventsEmitted"));
+        assertEquals(0L, server.getAttribute(name, "EventsDropped"));
+        assertEquals(0, server.getAttribute(name, "PendingBytes"));
+        assertTrue((Long) server.getAttribute(name, "BytesSent") > 0);
+        long flushes = (Long) server.getAttribute(name, "FlushCount");
+        assertTrue(flushes > 0);
+        long[] histogram = (long[]) server.getAttribute(name, "FlushLatencyHistogram");
+        long recorded = 0;
+        for (long c : histogram) {
+            recorded += c;
+        }
+        assertEquals(flushes, recorded);
+
+        // closing unregisters the metrics
+        sender.close();
+        assertFalse(server.isRegistered(name));
+        fluentd.close();
+    }
+
+    private static void writeAck(Packer packer, String chunk) throws IOException {
+        packer.writeMapBegin(1);
+        {
+            packer.write("ack");
+            packer.write(chunk);
+        }
+        packer.writeMapEnd();
+        packer.flush();
+    }
+
+    @Test
+    public void testThresholdFlushPolicy() throws Exception {
+        // start mock fluentd
+        int port = MockFluentd.randomPort();
+        final List<Event> elist = new CopyOnWriteArrayList<Event>();
+        MockFluentd fluentd = new MockFluentd(port, new MockFluentd.MockProcess() {
+            public void process(MessagePack msgpack, Socket socket) throws IOException {
+                BufferedInputStream in = new BufferedInputStream(socket.getInputStream());
+                try {
+                    Unpacker unpacker = msgpack.createUnpacker(in);
+                    while (true) {
+                        elist.add(unpacker.read(Event.class));
+                    }
+                } catch (EOFException e) {
+                    // ignore
+                }
+            }
+        });
+        fluentd.start();
+        fluentd.waitUntilReady();
+
+        // start senders; every 10th event is written right away
+        RawSocketSender sender = new RawSocketSender("localhost", port);
+        sender.setFlushPolicy(new ThresholdFlushPolicy(1024 * 1024, 10, 0));
+        for (int i = 0; i < 25; i++) {
+            Map<String, Object> data = new HashMap<String, Object>();
+            data.put("i", i);
+            assertTrue(sender.emit("tag.threshold", data));
+        }
+        assertEquals(2, sender.getMetrics().getFlushCount());
+        assertTrue(sender.getPendingBytes() > 0);
+
+        // the background flush writes the rest
+        sender.setFlushPolicy(new ThresholdFlushPolicy(1024 * 1024, 10, 50));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (elist.size() < 25 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, sender.getPendingBytes());
+        assertEquals(3, sender.getMetrics().getFlushCount());
+
+        sender.close();
+        fluentd.close();
+        assertEquals(25, elist.size());
+    }
+
+    private static MockFluentd startCountingFluentd(int port, final List<Event> elist) throws Exception {
+        MockFluentd fluentd = new MockFluentd(port, new MockFluentd.MockProcess() {
+            public void process(MessagePack msgpack, Socket socket) throws IOException {
+                BufferedInputStream in = new BufferedInputStream(socket.getInputStream());
+                try {
+                    Unpacker unpacker = msgpack.createUnpacker(in);
+                    while (true) {
+                        elist.add(unpacker.read(Event.class));
+                    }
+                } catch (EOFException e) {
+                    // ignore
+                }
+            }
+        });
+        fluentd.start();
+        fluentd.waitUntilReady();
+        return fluentd;
+    }
+
+    private static long awaitEvents(List<Event> elist, int count, long timeoutMillis) throws InterruptedException {
+        long start = System.currentTimeMillis();
+        while (elist.size() < count && System.currentTimeMillis() - start < timeoutMillis) {
+            Thread.sleep(5);
+        }
+        return System.currentTimeMillis() - start;
+    }
+
+    @Test
+    public void testBackgroundFlushConnects() throws Exception {
+        // start mock fluentd
+        int port = MockFluentd.randomPort();
+        List<Event> elist = new CopyOnWriteArrayList<Event>();
+        MockFluentd fluentd = startCountingFluentd(port, elist);
+
+        // a single event on a new sender, which hasn't connected yet
+        RawSocketSender sender = new RawSocketSender("localhost", port);
+        int maxDelay = 50;
+        sender.setFlushPolicy(new ThresholdFlushPolicy(1024 * 1024, 10, maxDelay));
+        Map<String, Object> data = new HashMap<String, Object>();
+        data.put("k", "v");
+        assertTrue(sender.emit("tag.background", data));
+        long elapsed = awaitEvents(elist, 1, 2000);
+        assertEquals(1, elist.size());
+        // leave room for a slow connect and scheduling
+        assertTrue("took " + elapsed + " ms", elapsed < maxDelay + 500);
+
+        sender.close();
+        fluentd.close();
+    }
+
+    @Test
+    public void testBackgroundFlushReconnects() throws Exception {
+        // fluentd is down at first
+        int port = MockFluentd.randomPort();
+        RawSocketSender sender = new RawSocketSender("localhost", port, 3000, 1024 * 1024,
+                new ConstantDelayReconnector(0));
+        int maxDelay = 50;
+        sender.setFlushPolicy(new ThresholdFlushPolicy(1024 * 1024, 10, maxDelay));
+        Map<String, Object> data = new HashMap<String, Object>();
+        data.put("k", "v");
+        assertTrue(sender.emit("tag.background", data));
+        long deadline = System.currentTimeMillis() + 2000;
+        while (sender.getMetrics().getFlushErrors() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertTrue(sender.getMetrics().getFlushErrors() > 0);
+
+        // the background flush reconnects once fluentd is up, without another emit
+        List<Event> elist = new CopyOnWriteArrayList<Event>();
+        MockFluentd fluentd = startCountingFluentd(port, elist);
+        long elapsed = awaitEvents(elist, 1, 2000);
+        assertEquals(1, elist.size());
+        assertTrue("took " + elapsed + " ms", elapsed < maxDelay + 500);
+
+        sender.close();
+        fluentd.close();
+    }
+
+    @Test
+    public void testUnclosedSenderWithBackgroundFlushIsCollected() throws Exception {
+        RawSocketSender sender = new RawSocketSender("localhost", MockFluentd.randomPort());
+        sender.setFlushPolicy(new ThresholdFlushPolicy(1024 * 1024, 10, 10));
+        WeakReference<RawSocketSender> ref = new WeakReference<RawSocketSender>(sender);
+        sender.getMetrics().unregister();
+
+        // the background flush doesn't keep the sender alive
+        sender = null;
+        for (int i = 0; i < 50 && ref.get() != null; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        assertNull(ref.get());
+    }
+
+    @Test
+    public void testManyConcurrentEmitters() throws Exception {
+        // start mock fluentd
+        int port = MockFluentd.randomPort();
+        final AtomicLong received = new AtomicLong();
+        MockFluentd fluentd = new MockFluentd(port, new MockFluentd.MockProcess() {
+            public void process(MessagePack msgpack, Socket socket) throws IOException {
+                BufferedInputStream in = new BufferedInputStream(socket.getInputStream());
+                try {
+                    Unpacker unpacker = msgpack.createUnpacker(in);
+                    while (true) {
+                        received.addAndGet(MockFluentd.readEvents(msgpack, unpacker).size());
+                    }
+                } catch (EOFException e) {
+                    // ignore
+                }
+            }
+        });
+        fluentd.start();
+        fluentd.waitUntilReady();
+
+        // thousands of emitters, on virtual threads where the JVM has them, recording when one is pinned
+        final RawSocketSender sender = new RawSocketSender("localhost", port);
+        final int emitters = 5000;
+        final int eventsPerEmitter = 10;
+        final AtomicLong emitted = new AtomicLong();
+        ExecutorService executor = newVirtualThreadExecutor();
+        Object pinned = null;
+        if (executor == null) {
+            executor = Executors.newFixedThreadPool(64);
+        } else {
+            pinned = startPinnedRecording();
+        }
+        final CountDownLatch done = new CountDownLatch(emitters);
+        for (int i = 0; i < emitters; i++) {
+            final int emitter = i;
+            executor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        for (int j = 0; j < eventsPerEmitter; j++) {
+                            Map<String, Object> data = new HashMap<String, Object>();
+                            data.put("emitter", emitter);
+                            data.put("j", j);
+                            if (sender.emit("tag.concurrent", data)) {
+                                emitted.incrementAndGet();
+                            }
+                        }
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            });
+        }
+        assertTrue(done.await(60, TimeUnit.SECONDS));
+        executor.shutdown();
+        sender.close();
+        if (pinned != null) {
+            assertEquals(0, stopPinnedRecording(pinned));
+        }
+
+        long deadline = System.currentTimeMillis() + 10000;
+        while (received.get() < emitted.get() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        fluentd.close();
+        assertEquals(emitters * eventsPerEmitter, emitted.get());
+        assertEquals(emitted.get(), received.get());
+    }
+
+    /**
+     * Returns <code>Executors.newVirtualThreadPerTaskExecutor()</code> on Java 21 and later, or null.
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (NoSuchMethodException e) {
+            return null;
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static final String PINNED_EVENT = "jdk.VirtualThreadPinned";
+
+    /**
+     * Starts a JFR recording of <code>jdk.VirtualThreadPinned</code> events, whatever their duration.
+     */
+    private static Object startPinnedRecording() throws Exception {
+        Class<?> recordingClass = Class.forName("jdk.jfr.Recording");
+        Object recording = recordingClass.newInstance();
+        Object settings = recordingClass.getMethod("enable", String.class).invoke(recording, PINNED_EVENT);
+        Class<?> durationClass = Class.forName("java.time.Duration");
+        Class.forName("jdk.jfr.EventSettings").getMethod("withThreshold", durationClass)
+                .invoke(settings, durationClass.getField("ZERO").get(null));
+        recordingClass.getMethod("start").invoke(recording);
+        return recording;
+    }
+
+    /**
+     * Stops the recording and returns the number of times a virtual thread was pinned.
+     */
+    private static int stopPinnedRecording(Object recording) throws Exception {
+        Class<?> recordingClass = recording.getClass();
+        recordingClass.getMethod("stop").invoke(recording);
+        File file = File.createTempFile("pinned", ".jfr");
+        try {
+            Class<?> pathClass = Class.forName("java.nio.file.Path");
+            Object path = File.class.getMethod("toPath").invoke(file);
+            recordingClass.getMethod("dump", pathClass).invoke(recording, path);
+            List<?> events = (List<?>) Class.forName("jdk.jfr.consumer.RecordingFile")
+                    .getMethod("readAllEvents", pathClass).invoke(null, path);
+            int count = 0;
+            for (Object event : events) {
+                Object type = Class.forName("jdk.jfr.consumer.RecordedEvent").getMethod("getEventType")
+                        .invoke(event);
+                if (PINNED_EVENT.equals(Class.forName("jdk.jfr.EventType").getMethod("getName").invoke(type))) {
+                    count++;
+                }
+            }
+            return count;
+        } finally {
+            recordingClass.getMethod("close").invoke(recording);
+            file.delete();
+        }
+    }
+
     @Test
     public void testTimeout() throws InterruptedException {
         final AtomicBoolean socketFinished = new AtomicBoolean(false);
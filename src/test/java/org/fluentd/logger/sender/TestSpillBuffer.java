@@ -0,0 +1,138 @@
+package org.fluentd.logger.sender;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.msgpack.MessagePack;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestSpillBuffer {
+
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("fluent-spill", "");
+        assertTrue(dir.delete());
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    private static byte[] message(int i) throws IOException {
+        return new MessagePack().write(Arrays.asList("tag", i));
+    }
+
+    private static boolean append(SpillBuffer spill, byte[] bytes) throws IOException {
+        return spill.append(Collections.singletonList(ByteBuffer.wrap(bytes)));
+    }
+
+    private static byte[] toBytes(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    @Test
+    public void testTruncatesCutOffMessageOnRestart() throws IOException {
+        byte[] first = message(1);
+        byte[] second = message(2);
+        SpillBuffer spill = new SpillBuffer(dir, 1024, 1024);
+        assertTrue(append(spill, first));
+        assertTrue(append(spill, second));
+        spill.close();
+
+        // a crash in the middle of writing the third message
+        File segment = dir.listFiles()[0];
+        byte[] third = message(3);
+        FileOutputStream out = new FileOutputStream(segment, true);
+        out.write(third, 0, third.length - 1);
+        out.close();
+
+        spill = new SpillBuffer(dir, 1024, 1024);
+        assertEquals(first.length + second.length, spill.size());
+        assertEquals(first.length + second.length, segment.length());
+        byte[] expected = new byte[first.length + second.length];
+        System.arraycopy(first, 0, expected, 0, first.length);
+        System.arraycopy(second, 0, expected, first.length, second.length);
+        assertArrayEquals(expected, toBytes(spill.head()));
+        spill.close();
+    }
+
+    @Test
+    public void testDropsSegmentWithoutCompleteMessageOnRestart() throws IOException {
+        SpillBuffer spill = new SpillBuffer(dir, 1024, 4);
+        assertTrue(append(spill, message(1)));
+        spill.close();
+
+        // a crash in the middle of writing the first message of a new segment
+        byte[] second = message(2);
+        FileOutputStream out = new FileOutputStream(new File(dir, "spill-0000000000000001.seg"));
+        out.write(second, 0, 1);
+        out.close();
+
+        spill = new SpillBuffer(dir, 1024, 4);
+        assertEquals(1, spill.getSegmentCount());
+        assertEquals(message(1).length, spill.size());
+        assertFalse(new File(dir, "spill-0000000000000001.seg").exists());
+        spill.close();
+    }
+
+    @Test
+    public void testSentSegmentsAreNotReplayedOnRestart() throws IOException {
+        SpillBuffer spill = new SpillBuffer(dir, 1024, 4);
+        assertTrue(append(spill, message(1)));
+        assertTrue(append(spill, message(2)));
+        assertEquals(2, spill.getSegmentCount());
+        spill.head();
+        spill.removeHead();
+        spill.close();
+
+        spill = new SpillBuffer(dir, 1024, 4);
+        assertEquals(1, spill.getSegmentCount());
+        assertArrayEquals(message(2), toBytes(spill.head()));
+        spill.removeHead();
+        assertTrue(spill.isEmpty());
+        spill.close();
+        assertEquals(0, dir.list().length);
+    }
+
+    @Test
+    public void testSegmentsBelowHeadAreNotReplayedOnRestart() throws IOException {
+        SpillBuffer spill = new SpillBuffer(dir, 1024, 4);
+        assertTrue(append(spill, message(1)));
+        assertTrue(append(spill, message(2)));
+        spill.close();
+
+        // the first segment was sent, but couldn't be deleted before a crash
+        FileOutputStream out = new FileOutputStream(new File(dir, "spill.head"));
+        out.write(new byte[] { 0, 0, 0, 0, 0, 0, 0, 1 });
+        out.close();
+
+        spill = new SpillBuffer(dir, 1024, 4);
+        assertEquals(1, spill.getSegmentCount());
+        assertArrayEquals(message(2), toBytes(spill.head()));
+        assertFalse(new File(dir, "spill-0000000000000000.seg").exists());
+        assertFalse(new File(dir, "spill.head").exists());
+        spill.close();
+    }
+}
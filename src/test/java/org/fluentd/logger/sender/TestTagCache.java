@@ -0,0 +1,61 @@
+package org.fluentd.logger.sender;
+
+import org.junit.Test;
+import org.msgpack.MessagePack;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class TestTagCache {
+
+    @Test
+    public void testCachesAndEvicts() {
+        final AtomicInteger computed = new AtomicInteger();
+        TagCache<String> cache = new TagCache<String>(4) {
+            @Override
+            protected String compute(String tag) {
+                computed.incrementAndGet();
+                return "prefix." + tag;
+            }
+        };
+
+        String value = cache.get("a");
+        assertEquals("prefix.a", value);
+        assertSame(value, cache.get(new String("a")));
+        assertEquals(1, computed.get());
+
+        // many distinct tags only evict, the cache doesn't grow
+        for (int i = 0; i < 1000; i++) {
+            assertEquals("prefix.t" + i, cache.get("t" + i));
+        }
+        assertEquals(1001, computed.get());
+        assertEquals("prefix.a", cache.get("a"));
+    }
+
+    @Test
+    public void testEncodedTags() throws Exception {
+        MessagePack msgpack = new MessagePack();
+        StringBuilder longTag = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            longTag.append("tag.");
+        }
+        for (String tag : new String[] { "", "app.access", "café", longTag.toString() }) {
+            assertArrayEquals(msgpack.write(tag), EncodedRecord.encode(tag));
+        }
+    }
+
+    @Test
+    public void testNullTag() {
+        TagCache<String> cache = new TagCache<String>() {
+            @Override
+            protected String compute(String tag) {
+                return "prefix." + tag;
+            }
+        };
+        assertEquals("prefix.null", cache.get(null));
+        assertEquals("prefix.null", cache.get(null));
+    }
+}
@@ -0,0 +1,117 @@
+package org.fluentd.logger.sender;
+
+import org.fluentd.logger.FluentLogger;
+import org.fluentd.logger.FluentLoggerFactory;
+import org.fluentd.logger.util.MockFluentd;
+import org.junit.Assume;
+import org.junit.Test;
+import org.msgpack.MessagePack;
+import org.msgpack.unpacker.Unpacker;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.SocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestUnixSocketSender {
+
+    @Test
+    public void testSendThroughFactory() throws Exception {
+        Assume.assumeTrue(UnixSocketSender.isSupported());
+
+        // start a server on a socket file
+        File socketFile = File.createTempFile("fluentd", ".sock");
+        socketFile.delete();
+        final ServerSocketChannel server = openServer(socketFile);
+        final List<Event> elist = new CopyOnWriteArrayList<Event>();
+        Thread acceptor = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    SocketChannel channel = server.accept();
+                    MessagePack msgpack = new MessagePack();
+                    Unpacker unpacker =
+                            msgpack.createUnpacker(new BufferedInputStream(Channels.newInputStream(channel)));
+                    while (true) {
+                        elist.addAll(MockFluentd.readEvents(msgpack, unpacker));
+                    }
+                } catch (EOFException e) {
+                    // ignore
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        acceptor.start();
+
+        // the factory picks the transport from the host
+        FluentLoggerFactory factory = new FluentLoggerFactory();
+        FluentLogger logger = factory.getLogger("unix", UnixSocketSender.URI_PREFIX + socketFile.getPath(), 0);
+        assertTrue(logger.getSender() instanceof UnixSocketSender);
+        int count = 100;
+        for (int i = 0; i < count; i++) {
+            Map<String, Object> data = new HashMap<String, Object>();
+            data.put("i", i);
+            assertTrue(logger.log("test", data));
+        }
+        logger.close();
+
+        acceptor.join(5000);
+        server.close();
+        socketFile.delete();
+
+        // check data
+        assertEquals(count, elist.size());
+        assertEquals("unix.test", elist.get(0).tag);
+        assertEquals(0L, elist.get(0).data.get("i"));
+        assertEquals((long) count - 1, elist.get(count - 1).data.get("i"));
+    }
+
+    @Test
+    public void testInvalidPathLeavesNoMetrics() throws Exception {
+        Assume.assumeTrue(UnixSocketSender.isSupported());
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName senders = new ObjectName("org.fluentd.logger:type=Sender,*");
+        int registered = server.queryNames(senders, null).size();
+        try {
+            new UnixSocketSender("invalid\u0000path");
+            fail();
+        } catch (RuntimeException e) {
+            // a NUL in the path is rejected after the metrics have been registered
+        }
+        assertEquals(registered, server.queryNames(senders, null).size());
+    }
+
+    @Test
+    public void testParsePath() {
+        assertEquals("/var/run/fluentd.sock", UnixSocketSender.parsePath("unix:///var/run/fluentd.sock"));
+        assertEquals(null, UnixSocketSender.parsePath("localhost"));
+    }
+
+    private static ServerSocketChannel openServer(File socketFile) throws Exception {
+        // Java 16 API, called reflectively as the tests compile for older versions
+        Class<?> familyClass = Class.forName("java.net.StandardProtocolFamily");
+        Object unix = familyClass.getField("UNIX").get(null);
+        ServerSocketChannel server = (ServerSocketChannel) ServerSocketChannel.class
+                .getMethod("open", Class.forName("java.net.ProtocolFamily")).invoke(null, unix);
+        SocketAddress address = (SocketAddress) Class.forName("java.net.UnixDomainSocketAddress")
+                .getMethod("of", String.class).invoke(null, socketFile.getPath());
+        server.bind(address);
+        return server;
+    }
+}
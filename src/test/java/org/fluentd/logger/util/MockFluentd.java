@@ -5,20 +5,29 @@ import org.msgpack.MessagePack;
 import org.msgpack.packer.Packer;
 import org.msgpack.template.Templates;
 import org.msgpack.type.Value;
+import org.msgpack.unpacker.BufferUnpacker;
+import org.msgpack.type.ValueType;
 import org.msgpack.unpacker.Unpacker;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.net.ServerSocket;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.GZIPInputStream;
 
 public class MockFluentd extends Thread {
 
@@ -47,21 +56,38 @@ public class MockFluentd extends Thread {
             {
                 to.tag = Templates.TString.read(u, null, required);
                 to.timestamp = Templates.TLong.read(u, null, required);
-                int size = u.readMapBegin();
-                to.data = new HashMap<String, Object>(size);
-                {
-                    for (int i = 0; i < size; i++) {
-                        String key = (String) toObject(u, u.readValue());
-                        Object value = toObject(u, u.readValue());
-                        to.data.put(key, value);
-                    }
-                }
-                u.readMapEnd();
+                to.data = readRecord(u);
             }
             u.readArrayEnd();
             return to;
         }
 
+        private static Map<String, Object> readRecord(Unpacker u) throws IOException {
+            int size = u.readMapBegin();
+            Map<String, Object> data = new HashMap<String, Object>(size);
+            {
+                for (int i = 0; i < size; i++) {
+                    String key = (String) toObject(u, u.readValue());
+                    Object value = toObject(u, u.readValue());
+                    data.put(key, value);
+                }
+            }
+            u.readMapEnd();
+            return data;
+        }
+
+        private static Event readEntry(Unpacker u, String tag) throws IOException {
+            Event e = new Event();
+            e.tag = tag;
+            u.readArrayBegin();
+            {
+                e.timestamp = u.readLong();
+                e.data = readRecord(u);
+            }
+            u.readArrayEnd();
+            return e;
+        }
+
         private static Object toObject(Unpacker u, Value v) {
             if (v.isNilValue()) {
                 v.asNilValue();
@@ -84,6 +110,107 @@ public class MockFluentd extends Thread {
         }
     }
 
+    /**
+     * Reads a message in any mode of the forward protocol (Message, Forward, PackedForward or
+     * CompressedPackedForward) and returns the events in it.
+     */
+    public static List<Event> readEvents(MessagePack msgpack, Unpacker u) throws IOException {
+        return readEvents(msgpack, u, new HashMap<String, Object>());
+    }
+
+    /**
+     * Same as {@link #readEvents(MessagePack, Unpacker)}, and stores the option of the message into
+     * <code>options</code>.
+     */
+    public static List<Event> readEvents(MessagePack msgpack, Unpacker u, Map<String, Object> options)
+            throws IOException {
+        List<Event> events = new ArrayList<Event>();
+        byte[] packedEntries = null;
+        int size = u.readArrayBegin();
+        String tag = u.readString();
+        ValueType type = u.getNextType();
+        if (type == ValueType.INTEGER) {
+            // Message mode: [tag, time, record, option?]
+            Event e = new Event();
+            e.tag = tag;
+            e.timestamp = u.readLong();
+            e.data = MockEventTemplate.readRecord(u);
+            events.add(e);
+            size -= 3;
+        } else if (type == ValueType.ARRAY) {
+            // Forward mode: [tag, [[time, record], ...], option?]
+            int count = u.readArrayBegin();
+            for (int i = 0; i < count; i++) {
+                events.add(MockEventTemplate.readEntry(u, tag));
+            }
+            u.readArrayEnd();
+            size -= 2;
+        } else {
+            // PackedForward mode: [tag, entries, option?]
+            packedEntries = u.readByteArray();
+            size -= 2;
+        }
+        if (size > 0) {
+            int count = u.readMapBegin();
+            for (int i = 0; i < count; i++) {
+                options.put(u.readString(), MockEventTemplate.toObject(u, u.readValue()));
+            }
+            u.readMapEnd();
+        }
+        u.readArrayEnd();
+
+        if (packedEntries != null) {
+            if ("gzip".equals(options.get("compressed"))) {
+                packedEntries = gunzip(packedEntries);
+            }
+            events.addAll(readEntries(msgpack, packedEntries, tag));
+        }
+        return events;
+    }
+
+    /**
+     * Reads the <code>[time, record]</code> entries of a PackedForward message. msgpack-java 0.6 can't
+     * read ext types, so an EventTime is decoded here.
+     */
+    private static List<Event> readEntries(MessagePack msgpack, byte[] entries, String tag) throws IOException {
+        List<Event> events = new ArrayList<Event>();
+        ByteBuffer buffer = ByteBuffer.wrap(entries);
+        BufferUnpacker u = msgpack.createBufferUnpacker();
+        while (buffer.hasRemaining()) {
+            int start = buffer.position();
+            if (buffer.get(start) == (byte) 0x92 && buffer.get(start + 1) == (byte) 0xd7
+                    && buffer.get(start + 2) == 0) {
+                Event e = new Event();
+                e.tag = tag;
+                e.timestamp = buffer.getInt(start + 3) & 0xffffffffL;
+                e.nanos = buffer.getInt(start + 7);
+                e.eventTime = true;
+                u.wrap(entries, start + 11, entries.length - start - 11);
+                u.resetReadByteCount();
+                e.data = MockEventTemplate.readRecord(u);
+                buffer.position(start + 11 + u.getReadByteCount());
+                events.add(e);
+            } else {
+                u.wrap(entries, start, entries.length - start);
+                u.resetReadByteCount();
+                events.add(MockEventTemplate.readEntry(u, tag));
+                buffer.position(start + u.getReadByteCount());
+            }
+        }
+        return events;
+    }
+
+    private static byte[] gunzip(byte[] compressed) throws IOException {
+        InputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[8192];
+        int n;
+        while ((n = in.read(buf)) >= 0) {
+            out.write(buf, 0, n);
+        }
+        return out.toByteArray();
+    }
+
     private final int port;
     private ServerSocket serverSocket;
 